@@ -1,5 +1,8 @@
 package render;
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
 import javax_.vecmath.Matrix4f;
 
 import org.lwjgl.*;
@@ -11,12 +14,31 @@ import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.system.MemoryUtil.*;
 import camera.Camera;
+import snapshot.ParticleStore;
 import snapshot.Snapshot;
+import snapshot.SnapshotExporter;
 import viewer.GLProgram;
 
 public class PointRenderer {
 	GLProgram program;
 	private int VAO;
+	private int buffer;
+	/** Particles the vertex buffer has room for. */
+	private int bufferParticles = -1;
+	/** Tracks which particles in the vertex buffer are out of date. */
+	private final SnapshotExporter exporter = new SnapshotExporter(ParticleStore.PX);
+	/** Positions of snapshots without a position buffer, exported here before upload. */
+	private FloatBuffer staging;
+	/** Runs of live particles drawn, recomputed when the slot layout changes. */
+	private IntBuffer firsts, counts;
+	private ParticleStore drawnStore;
+	private long drawnOrder;
+	
+	// Scratch space reused across frames.
+	private final Matrix4f view = new Matrix4f();
+	private final Matrix4f proj = new Matrix4f();
+	private final Matrix4f mvp = new Matrix4f();
+	private final float[] mvpData = new float[16];
 	
 	public PointRenderer() {
 		try {
@@ -37,16 +59,10 @@ public class PointRenderer {
 		program.use();
 		
 		// Get Cam Data
-		Matrix4f view = new Matrix4f();
 		camera.getViewMatrix(view);
-		
-		Matrix4f proj = new Matrix4f();
 		camera.getProjectionMatrix(proj);
-		
-		Matrix4f mvp = new Matrix4f();
 		mvp.mul(proj, view);
 		
-		float[] mvpData = new float[16];
 		for (int i=0; i<4; i++) {
 			for (int j=0; j<4; j++) {
 				mvpData[4*i+j] = mvp.getElement(j, i);
@@ -54,13 +70,39 @@ public class PointRenderer {
 		}
 		
 		////////////////////////////
-		// Not sure what you do.
-		VAO = GL30.glGenVertexArrays();
+		// The VAO and vertex buffer are created once and refilled every frame.
+		if (VAO == 0) {
+			VAO = GL30.glGenVertexArrays();
+			buffer = GL15.glGenBuffers();
+		}
 		GL30.glBindVertexArray(VAO);
-		
-		int buffer = GL15.glGenBuffers();
 		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
-		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, snapshot.getPosArray(), GL15.GL_DYNAMIC_DRAW);
+		
+		// Only particles that moved since the last upload are sent. They are read
+		// straight from the off-heap mirror when the snapshot has one, so no Java
+		// array is built and LWJGL does not need to copy.
+		int n = snapshot.store.capacity;
+		if (n != bufferParticles) {
+			GL15.glBufferData(GL15.GL_ARRAY_BUFFER, 12L*n, GL15.GL_DYNAMIC_DRAW);
+			bufferParticles = n;
+			exporter.invalidate();
+		}
+		FloatBuffer posBuffer = snapshot.store.getPosBuffer();
+		if (posBuffer != null) {
+			exporter.update(snapshot.store);
+			posBuffer = posBuffer.duplicate();
+		} else {
+			if (staging == null || staging.capacity() < 3*n)
+				staging = BufferUtils.createFloatBuffer(3*n);
+			exporter.export(snapshot.store, staging);
+			posBuffer = staging;
+		}
+		for (int r = 0; r < exporter.getRangeCount(); r++) {
+			int from = exporter.getRangeStart(r), to = exporter.getRangeEnd(r);
+			posBuffer.limit(3*to).position(3*from);
+			GL15.glBufferSubData(GL15.GL_ARRAY_BUFFER, 12L*from, posBuffer);
+		}
+		posBuffer.clear();
 		
 		///////////////////////////
 		// Upload things to program
@@ -83,7 +125,15 @@ public class PointRenderer {
 		
 
 		
-		glDrawArrays(GL_POINTS, 0, snapshot.part.length);//snapshot.getPosArray());
+		// Dead slots hold stale positions, so only the runs of live particles are drawn.
+		ParticleStore store = snapshot.store;
+		if (store.getLiveCount() == store.size) {
+			glDrawArrays(GL_POINTS, 0, store.size);
+		} else {
+			if (store != drawnStore || store.getOrder() != drawnOrder)
+				findLiveRuns(store);
+			GL14.glMultiDrawArrays(GL_POINTS, firsts, counts);
+		}
 		
 		
 		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
@@ -94,4 +144,26 @@ public class PointRenderer {
 		
 		glfwSwapBuffers(window);
 	}
+	
+	private void findLiveRuns(ParticleStore store) {
+		if (firsts == null || firsts.capacity() < store.size/2 + 1) {
+			firsts = BufferUtils.createIntBuffer(store.capacity/2 + 1);
+			counts = BufferUtils.createIntBuffer(store.capacity/2 + 1);
+		}
+		firsts.clear();
+		counts.clear();
+		for (int i = 0; i < store.size; i++) {
+			if (!store.isAlive(i))
+				continue;
+			int start = i;
+			while (i < store.size && store.isAlive(i))
+				i++;
+			firsts.put(start);
+			counts.put(i - start);
+		}
+		firsts.flip();
+		counts.flip();
+		drawnStore = store;
+		drawnOrder = store.getOrder();
+	}
 }
@@ -1,21 +1,222 @@
 package sim;
 
-import javax_.vecmath.Vector3d;
-
-import snapshot.Particle;
+import snapshot.MortonSorter;
+import snapshot.ParticleStore;
 import snapshot.Snapshot;
+import snapshot.SnapshotStats;
 
 public class VelocitySimulator {
+	/**
+	 * Particles integrated per chunk; small enough for a chunk of every column to
+	 * stay in cache, and one change-tracking block so settled blocks keep their version.
+	 */
+	private static final int CHUNK = ParticleStore.BLOCK_SIZE;
+	
+	/**
+	 * Preallocated buffers for in-place stepping. front holds the latest state,
+	 * back the state before the last call to step.
+	 */
+	private Snapshot front, back;
+	
+	/** Steps between Morton reorders, or 0 to keep particles in their initial order. */
+	private int reorderInterval;
+	private int sinceReorder;
+	private MortonSorter sorter;
+	
+	/** The fraction of dead slots above which step() compacts the particles. */
+	private double compactionThreshold = 0.25;
+	/** The live slots of the state being compacted, kept between compactions. */
+	private int[] liveSlots;
+	
 	public VelocitySimulator(){}
 	
 	public Snapshot simulate(Snapshot snapshot1, double t) {
-		System.out.println(t);
-		Snapshot snapshot2 = new Snapshot(snapshot1, t);
-		Vector3d displacement = new Vector3d(); 
-		for (Particle p : snapshot2.part) {
-			displacement.scale(t-snapshot1.t, p.vel);
-			p.pos.add(displacement);
-		}
+		ParticleStore s = snapshot1.store;
+		// advance() copies everything but positions, so the result need not start as a copy.
+		Snapshot snapshot2 = new Snapshot(s.size, t, s.precision, s.capacity);
+		if (s.getPosBuffer() != null)
+			snapshot2.store.enablePosBuffer();
+		advance(s, snapshot2.store, t-snapshot1.t);
 		return snapshot2;
 	}
+	
+	/**
+	 * Sets up double-buffered stepping from an initial state. The simulator
+	 * takes ownership of the given Snapshot and allocates one more like it.
+	 * After this, step() allocates no particle storage or statistics. The
+	 * parallel copies still allocate their task bookkeeping, about 2 KB a
+	 * step, and a compaction one int per block of particles.
+	 * 
+	 * @param initial The starting state. It becomes the current Snapshot.
+	 */
+	public void reset(Snapshot initial) {
+		front = initial;
+		back = new Snapshot(initial, initial.t);
+	}
+	
+	/**
+	 * Makes step() sort particles in Morton order every few steps, so that
+	 * particles close in space stay close in memory. Particle ids are kept,
+	 * and the current and previous Snapshots always share one order.
+	 * 
+	 * @param steps The number of steps between reorders, or 0 to never reorder.
+	 */
+	public void setReorderInterval(int steps) {
+		if (steps < 0)
+			throw new IllegalArgumentException("Reorder interval must not be negative");
+		reorderInterval = steps;
+		sinceReorder = 0;
+		if (steps > 0 && sorter == null)
+			sorter = new MortonSorter();
+	}
+	
+	/**
+	 * Makes step() squeeze out the slots of killed particles once they make up
+	 * more than a given fraction of the slots in use. Compaction moves
+	 * particles but keeps their ids; a Morton reorder compacts as well.
+	 * 
+	 * @param fraction The largest tolerated fraction of dead slots, in [0, 1].
+	 */
+	public void setCompactionThreshold(double fraction) {
+		if (!(fraction >= 0 && fraction <= 1))
+			throw new IllegalArgumentException("Compaction threshold must be in [0, 1]");
+		compactionThreshold = fraction;
+	}
+	
+	/**
+	 * Advances the current state to time t by writing into the back buffer and
+	 * then swapping buffers. The state before the step stays readable through
+	 * getPrevious() until the next call.
+	 * 
+	 * @param t The simulation time in seconds to advance to.
+	 * @return The new current Snapshot.
+	 */
+	public Snapshot step(double t) {
+		if (front == null)
+			throw new IllegalStateException("reset() must be called before step()");
+		// Reorder or compact the current state first, so the step writes both
+		// buffers in the new layout.
+		boolean reorder = reorderInterval > 0 && ++sinceReorder >= reorderInterval;
+		if (reorder || front.store.getFragmentation() > compactionThreshold) {
+			if (reorder) {
+				sinceReorder = 0;
+				sorter.reorder(front.store, back.store);
+			} else {
+				liveSlots = back.store.compactFrom(front.store, liveSlots);
+			}
+			back.t = front.t;
+			Snapshot tmp = front;
+			front = back;
+			back = tmp;
+		}
+		advance(front.store, back.store, t-front.t);
+		back.t = t;
+		Snapshot tmp = front;
+		front = back;
+		back = tmp;
+		return front;
+	}
+	
+	/**
+	 * @return The latest state produced by step(), or the initial state.
+	 */
+	public Snapshot getCurrent() {
+		return front;
+	}
+	
+	/**
+	 * @return The state before the last step. It is overwritten by the next step.
+	 */
+	public Snapshot getPrevious() {
+		return back;
+	}
+	
+	/**
+	 * Moves every particle along its velocity for dt seconds, reading from src
+	 * and writing to dst. src and dst may be the same store, and must have the
+	 * same precision. Dead slots have zero velocity, so they stay put. The
+	 * statistics of dst are gathered along the way.
+	 */
+	private static void advance(ParticleStore src, ParticleStore dst, double dt) {
+		if (src.precision != dst.precision)
+			throw new IllegalArgumentException("Stores differ in precision");
+		if (src != dst) {
+			dst.copyOrder(src);
+			for (int c = ParticleStore.VX; c <= ParticleStore.MASS; c++)
+				dst.copyColumn(src, c);
+			dst.copyVersions(src, ParticleStore.VX, 0, src.size);
+			dst.copyAttributes(src);
+		}
+		// Integrate in chunks so the render copy and statistics are written while
+		// the chunk is still in cache.
+		SnapshotStats stats = dst.reusableStats();
+		for (int from = 0; from < src.size; from += CHUNK) {
+			int to = Math.min(src.size, from + CHUNK);
+			boolean moved = false;
+			switch (src.precision) {
+			case DOUBLE:
+				moved |= advance(src.px, src.vx, dst.px, from, to, dt);
+				moved |= advance(src.py, src.vy, dst.py, from, to, dt);
+				moved |= advance(src.pz, src.vz, dst.pz, from, to, dt);
+				break;
+			case MIXED:
+				moved |= advance(src.px, src.vxf, dst.px, from, to, dt);
+				moved |= advance(src.py, src.vyf, dst.py, from, to, dt);
+				moved |= advance(src.pz, src.vzf, dst.pz, from, to, dt);
+				break;
+			case FLOAT:
+				moved |= advance(src.pxf, src.vxf, dst.pxf, from, to, (float) dt);
+				moved |= advance(src.pyf, src.vyf, dst.pyf, from, to, (float) dt);
+				moved |= advance(src.pzf, src.vzf, dst.pzf, from, to, (float) dt);
+				break;
+			}
+			if (moved) {
+				dst.markChanged(ParticleStore.PX, from, to);
+				dst.syncPosBuffer(from, to);
+			} else if (src != dst) {
+				// A settled block keeps its version so exporters can skip it, and
+				// the render copy only needs writing if dst held other positions.
+				int block = from >> ParticleStore.BLOCK_SHIFT;
+				long before = dst.getVersion(ParticleStore.PX, block);
+				dst.copyVersions(src, ParticleStore.PX, from, to);
+				if (before == 0 || before != dst.getVersion(ParticleStore.PX, block))
+					dst.syncPosBuffer(from, to);
+			}
+			stats.accumulate(dst, from, to);
+		}
+		dst.setStats(stats);
+	}
+	
+	/**
+	 * @return Whether any particle moved.
+	 */
+	private static boolean advance(double[] p, double[] v, double[] out, int from, int to, double dt) {
+		boolean moved = false;
+		for (int i = from; i < to; i++) {
+			double x = p[i] + dt*v[i];
+			moved |= x != p[i];
+			out[i] = x;
+		}
+		return moved;
+	}
+	
+	private static boolean advance(double[] p, float[] v, double[] out, int from, int to, double dt) {
+		boolean moved = false;
+		for (int i = from; i < to; i++) {
+			double x = p[i] + dt*v[i];
+			moved |= x != p[i];
+			out[i] = x;
+		}
+		return moved;
+	}
+	
+	private static boolean advance(float[] p, float[] v, float[] out, int from, int to, float dt) {
+		boolean moved = false;
+		for (int i = from; i < to; i++) {
+			float x = p[i] + dt*v[i];
+			moved |= x != p[i];
+			out[i] = x;
+		}
+		return moved;
+	}
 }
@@ -0,0 +1,148 @@
+package snapshot;
+
+import javax_.vecmath.Matrix3d;
+import javax_.vecmath.Tuple3d;
+
+/**
+ * An extra per-particle property, such as temperature, color or a deformation
+ * gradient, stored as one primitive column per component alongside the core
+ * columns of a {@link ParticleStore}.
+ *
+ * Attributes are registered by name on the store (see
+ * {@link ParticleStore#attribute(String, Attribute.Kind)}) by whichever solver
+ * or renderer needs them, so stores that never register one pay nothing. They
+ * are copied, reordered and converted together with the rest of the store.
+ *
+ * Like velocities and masses, attributes are held in double precision for
+ * {@link ParticleStore.Precision#DOUBLE} stores and in single precision
+ * otherwise; exactly one of {@link #d} and {@link #f} is non-null.
+ */
+public final class Attribute implements java.io.Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The shape of an attribute's value.
+	 */
+	public enum Kind {
+		SCALAR(1),
+		VEC3(3),
+		/** A 3x3 matrix, stored row-major as components m00, m01, ... m22. */
+		MAT3(9);
+
+		public final int components;
+
+		Kind(int components) {
+			this.components = components;
+		}
+	}
+
+	public final String name;
+	public final Kind kind;
+	/** The number of slots, equal to the capacity of the store. */
+	public final int capacity;
+
+	/** Component columns in double precision, or null. */
+	public final double[][] d;
+	/** Component columns in single precision, or null. */
+	public final float[][] f;
+
+	Attribute(String name, Kind kind, int capacity, boolean doublePrecision) {
+		this.name = name;
+		this.kind = kind;
+		this.capacity = capacity;
+		d = doublePrecision ? new double[kind.components][capacity] : null;
+		f = doublePrecision ? null : new float[kind.components][capacity];
+	}
+
+	/**
+	 * Reads one component.
+	 *
+	 * @param component The component number, below kind.components.
+	 * @param i The particle index.
+	 */
+	public double get(int component, int i) {
+		return d != null ? d[component][i] : f[component][i];
+	}
+
+	/**
+	 * Writes one component, rounding it if the attribute is single precision.
+	 *
+	 * @param component The component number, below kind.components.
+	 * @param i The particle index.
+	 * @param v The value.
+	 */
+	public void set(int component, int i, double v) {
+		if (d != null)
+			d[component][i] = v;
+		else
+			f[component][i] = (float) v;
+	}
+
+	public void get(int i, Tuple3d out) {
+		out.set(get(0, i), get(1, i), get(2, i));
+	}
+
+	public void set(int i, double x, double y, double z) {
+		set(0, i, x);
+		set(1, i, y);
+		set(2, i, z);
+	}
+
+	public void get(int i, Matrix3d out) {
+		out.setRow(0, get(0, i), get(1, i), get(2, i));
+		out.setRow(1, get(3, i), get(4, i), get(5, i));
+		out.setRow(2, get(6, i), get(7, i), get(8, i));
+	}
+
+	public void set(int i, Matrix3d m) {
+		set(0, i, m.m00); set(1, i, m.m01); set(2, i, m.m02);
+		set(3, i, m.m10); set(4, i, m.m11); set(5, i, m.m12);
+		set(6, i, m.m20); set(7, i, m.m21); set(8, i, m.m22);
+	}
+
+	/**
+	 * @return The memory held by the attribute's columns, in bytes.
+	 */
+	public long sizeInBytes() {
+		return (long) kind.components * capacity * (d != null ? 8 : 4);
+	}
+
+	/**
+	 * Copies all components of particles [from, to) from an attribute of the
+	 * same kind, converting precision if needed.
+	 */
+	void copyFrom(Attribute other, int from, int to) {
+		for (int c = 0; c < kind.components; c++) {
+			if (d != null && other.d != null) {
+				System.arraycopy(other.d[c], from, d[c], from, to - from);
+			} else if (f != null && other.f != null) {
+				System.arraycopy(other.f[c], from, f[c], from, to - from);
+			} else {
+				for (int i = from; i < to; i++)
+					set(c, i, other.get(c, i));
+			}
+		}
+	}
+
+	/**
+	 * Sets particles [from, to) to particles perm[from..to) of another
+	 * attribute of the same kind and precision.
+	 */
+	void gather(Attribute src, int[] perm, int from, int to) {
+		for (int c = 0; c < kind.components; c++) {
+			if (d != null) {
+				double[] a = src.d[c], b = d[c];
+				for (int i = from; i < to; i++)
+					b[i] = a[perm[i]];
+			} else {
+				float[] a = src.f[c], b = f[c];
+				for (int i = from; i < to; i++)
+					b[i] = a[perm[i]];
+			}
+		}
+	}
+}
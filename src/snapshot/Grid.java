@@ -1,71 +1,537 @@
 package snapshot;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
 import javax_.vecmath.Point3d;
+import javax_.vecmath.Tuple3d;
 import javax_.vecmath.Vector3d;
 
+/**
+ * A regular grid of (xDivs+1) x (yDivs+1) x (zDivs+1) nodes spaced h apart,
+ * holding the mass and momentum transferred from particles with a cubic
+ * B-spline kernel.
+ *
+ * Node fields live in one flat array indexed by node number
+ * {@link #index(int, int, int)}, with z varying fastest, so a stencil walks
+ * contiguous memory. In the {@link Layout#SEPARATE} layout each field is its
+ * own contiguous run; in the {@link Layout#INTERLEAVED} layout the mass and
+ * momentum of a node sit next to each other, so a transfer touches one cache
+ * line per node instead of four.
+ *
+ * {@link #gatherAllParallel(Snapshot)} spreads a transfer across threads by
+ * giving each thread a private tile of the grid covering only its own
+ * particles, and adding the tiles into the grid afterwards.
+ * {@link #gatherAllColored(Snapshot)} needs no extra grid memory: it bins
+ * particles by block of cells and has threads fill blocks that cannot share
+ * nodes at the same time.
+ */
 public class Grid {
+
+	/**
+	 * How node fields are arranged in memory.
+	 */
+	public enum Layout {
+		/** One run of nodes per field: all masses, then all x momenta, and so on. */
+		SEPARATE,
+		/** Mass, x, y and z momentum of each node together. */
+		INTERLEAVED,
+	}
+
+	/** Fields per node: mass and three momentum components. */
+	static final int FIELDS = 4;
+	public static final int MASS = 0, PX = 1, PY = 2, PZ = 3;
+	/** Particles read per pass over the store's columns. */
+	private static final int CHUNK = 1024;
+	/** The fewest particles worth giving a thread its own tile. */
+	private static final int MIN_TILE_PARTICLES = 1 << 14;
+	/**
+	 * Cells along each edge of a block scheduled by gatherAllColored. Must be
+	 * at least 3, so that the nodes reached from blocks two apart never meet.
+	 */
+	static final int COLOR_BLOCK = 8;
+
 	Point3d origin;
 	int xDivs;
 	int yDivs;
 	int zDivs;
-	
+
 	double h; // Width of grid
-	double[][][] masses;
-	double[][][][] momenta;
-	
+	public final Layout layout;
+	/** Nodes along each axis. */
+	final int nx, ny, nz;
+	/** The indices of node 0 in the grid a tile was cut from; zero for a whole grid. */
+	final int i0, j0, k0;
+	/** All node fields; field f of node n is at n*nodeStride + f*fieldStride. */
+	final double[] data;
+	final int nodeStride, fieldStride;
+	/** The nodes given mass or momentum since the last clear(), in the order first touched. */
+	final int[] touched;
+	int touchedCount;
+	final boolean[] isTouched;
+
 	public Grid(Point3d origin, double h, int xDivs, int yDivs, int zDivs) {
+		this(origin, h, xDivs, yDivs, zDivs, Layout.SEPARATE);
+	}
+
+	public Grid(Point3d origin, double h, int xDivs, int yDivs, int zDivs, Layout layout) {
+		this(origin, h, xDivs, yDivs, zDivs, layout, 0, 0, 0);
+	}
+
+	/**
+	 * Creates a tile of a grid, holding nodes [i0, i0+xDivs] x [j0, j0+yDivs]
+	 * x [k0, k0+zDivs] and addressed by the grid's own node indices.
+	 */
+	private Grid(Grid parent, int i0, int j0, int k0, int xDivs, int yDivs, int zDivs) {
+		this(parent.origin, parent.h, xDivs, yDivs, zDivs, parent.layout, i0, j0, k0);
+	}
+
+	private Grid(Point3d origin, double h, int xDivs, int yDivs, int zDivs, Layout layout, int i0, int j0, int k0) {
 		this.origin = origin;
 		this.h = h;
 		this.xDivs = xDivs;
 		this.yDivs = yDivs;
 		this.zDivs = zDivs;
-		masses = new double[xDivs+1][yDivs+1][zDivs+1];
-		momenta = new double[xDivs+1][yDivs+1][zDivs+1][3];
+		this.layout = layout;
+		this.i0 = i0;
+		this.j0 = j0;
+		this.k0 = k0;
+		nx = xDivs + 1;
+		ny = yDivs + 1;
+		nz = zDivs + 1;
+		long nodes = (long) nx * ny * nz;
+		if (FIELDS * nodes > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Grid of " + nodes + " nodes is too large");
+		data = new double[(int) (FIELDS * nodes)];
+		nodeStride = layout == Layout.INTERLEAVED ? FIELDS : 1;
+		fieldStride = layout == Layout.INTERLEAVED ? 1 : (int) nodes;
+		touched = new int[(int) nodes];
+		isTouched = new boolean[(int) nodes];
+	}
+
+	/**
+	 * Creates a grid covering a set of particles and the two-cell reach of
+	 * the cubic kernel around them.
+	 *
+	 * @param stats Statistics of the particles, e.g. from Snapshot.getStats().
+	 * @param h The width of a cell.
+	 */
+	public static Grid around(SnapshotStats stats, double h) {
+		checkAround(stats);
+		Point3d origin = new Point3d(stats.getMin(0) - 2*h, stats.getMin(1) - 2*h, stats.getMin(2) - 2*h);
+		return new Grid(origin, h,
+				(int) Math.ceil((stats.getMax(0) - stats.getMin(0)) / h) + 4,
+				(int) Math.ceil((stats.getMax(1) - stats.getMin(1)) / h) + 4,
+				(int) Math.ceil((stats.getMax(2) - stats.getMin(2)) / h) + 4);
+	}
+
+	static void checkAround(SnapshotStats stats) {
+		if (stats.getCount() == 0)
+			throw new IllegalArgumentException("Cannot place a grid around no particles");
+	}
+
+	/**
+	 * @return The number of nodes.
+	 */
+	public int getNodeCount() {
+		return nx * ny * nz;
+	}
+
+	/**
+	 * @return The node number of node (i, j, k), for i in [0, xDivs] and so on.
+	 */
+	public int index(int i, int j, int k) {
+		return ((i - i0) * ny + (j - j0)) * nz + (k - k0);
+	}
+
+	/**
+	 * Reads one field of a node.
+	 *
+	 * @param node The node number.
+	 * @param field MASS, PX, PY or PZ.
+	 */
+	public double get(int node, int field) {
+		return data[node * nodeStride + field * fieldStride];
+	}
+
+	public double getMass(int i, int j, int k) {
+		return get(index(i, j, k), MASS);
+	}
+
+	/**
+	 * @param out Receives the momentum of node (i, j, k), or its velocity after normalize().
+	 */
+	public void getMomentum(int i, int j, int k, Tuple3d out) {
+		int node = index(i, j, k);
+		out.set(get(node, PX), get(node, PY), get(node, PZ));
+	}
+
+	/**
+	 * @return The number of nodes given mass or momentum since the last clear().
+	 */
+	public int getTouchedCount() {
+		return touchedCount;
+	}
+
+	/**
+	 * Zeroes every node. Only the nodes touched since the last clear() are
+	 * visited, so clearing after a sparse transfer is cheap.
+	 */
+	public void clear() {
+		if (touchedCount > data.length / (2*FIELDS)) {
+			Arrays.fill(data, 0);
+			Arrays.fill(isTouched, false);
+		} else {
+			for (int t = 0; t < touchedCount; t++) {
+				int node = touched[t], n = node * nodeStride;
+				for (int f = 0; f < FIELDS; f++)
+					data[n + f*fieldStride] = 0;
+				isTouched[node] = false;
+			}
+		}
+		touchedCount = 0;
+	}
+
+	/**
+	 * Transfers every live particle of a Snapshot to the grid: clears it,
+	 * adds the mass and momentum of each particle, then turns the momentum of
+	 * each touched node into velocity. Particles near or past the edge of the
+	 * grid lose the part of their kernel that falls outside it.
+	 *
+	 * @param ss The Snapshot.
+	 */
+	public void gatherAll(Snapshot ss) {
+		clear();
+		gather(ss.store, 0, ss.store.size);
+		normalize();
+	}
+
+	/**
+	 * Does the same as {@link #gatherAll(Snapshot)} using the threads of the
+	 * common ForkJoinPool.
+	 *
+	 * The particles are split into one contiguous range per thread. Each
+	 * thread gathers its range into a private tile just large enough for the
+	 * stencils of its particles, then the tiles are added into the grid in
+	 * parallel, one x slab of nodes per task, and the touched nodes are
+	 * normalized in parallel. Tiles are small when nearby particles are
+	 * stored near each other, as after a MortonSorter reorder; for unsorted
+	 * particles each tile approaches a full copy of the grid.
+	 *
+	 * Sums are added in a different order than by gatherAll, so node values
+	 * may differ from it, and between machines with different numbers of
+	 * threads, in the last bits.
+	 *
+	 * @param ss The Snapshot.
+	 */
+	public void gatherAllParallel(Snapshot ss) {
+		clear();
+		final ParticleStore s = ss.store;
+		final int parts = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), s.size / MIN_TILE_PARTICLES));
+		final Grid[] tiles = new Grid[parts];
+		IntStream.range(0, parts).parallel().forEach(p -> {
+			int from = (int) ((long) s.size * p / parts), to = (int) ((long) s.size * (p+1) / parts);
+			Grid tile = tile(s, from, to);
+			if (tile != null)
+				tile.gather(s, from, to);
+			tiles[p] = tile;
+		});
+
+		final int[][] slabTouched = new int[nx][];
+		IntStream.range(0, nx).parallel().forEach(i -> slabTouched[i] = reduce(tiles, i));
+		for (int[] slab : slabTouched) {
+			System.arraycopy(slab, 0, touched, touchedCount, slab.length);
+			touchedCount += slab.length;
+		}
+
+		normalizeParallel();
+	}
+
+	/**
+	 * Does the same as {@link #gatherAll(Snapshot)} using the threads of the
+	 * common ForkJoinPool, without the private grid copies of
+	 * {@link #gatherAllParallel(Snapshot)}.
+	 *
+	 * The grid is divided into blocks of COLOR_BLOCK^3 cells and each live
+	 * particle is binned by the block holding the first node of its stencil.
+	 * The nodes a block's particles reach extend three nodes past the block,
+	 * so blocks two apart along every axis never share a node. Blocks are
+	 * therefore given one of 8 colors by the parity of their x, y and z block
+	 * indices, and the colors are processed one after another, with all
+	 * blocks of a color filled in parallel straight into the grid. No locks,
+	 * atomics or reductions are needed, and the extra memory is two ints per
+	 * particle and one per block.
+	 *
+	 * Each block adds its particles in store order and colors are processed
+	 * in a fixed order, so the result does not depend on the number of
+	 * threads, though it may differ from gatherAll in the last bits.
+	 *
+	 * @param ss The Snapshot.
+	 */
+	public void gatherAllColored(Snapshot ss) {
+		clear();
+		final ParticleStore s = ss.store;
+		final int bx = (nx + COLOR_BLOCK - 1) / COLOR_BLOCK, by = (ny + COLOR_BLOCK - 1) / COLOR_BLOCK, bz = (nz + COLOR_BLOCK - 1) / COLOR_BLOCK;
+		final int blocks = bx * by * bz;
+
+		// Bin the particles by block with a counting sort.
+		final int[] block = new int[s.size];
+		IntStream.range(0, (s.size + CHUNK - 1) / CHUNK).parallel().forEach(k -> {
+			int from = k * CHUNK, to = Math.min(s.size, from + CHUNK);
+			double[][] pos = new double[3][CHUNK];
+			for (int a = 0; a < 3; a++)
+				s.readColumn(ParticleStore.PX + a, from, to, pos[a], 0);
+			for (int i = from; i < to; i++)
+				block[i] = s.id[i] < 0 ? -1 : blockOf(pos[0][i - from], pos[1][i - from], pos[2][i - from], by, bz);
+		});
+		final int[] start = new int[blocks + 1];
+		for (int b : block)
+			if (b >= 0)
+				start[b + 1]++;
+		for (int b = 0; b < blocks; b++)
+			start[b + 1] += start[b];
+		final int[] order = new int[start[blocks]];
+		int[] next = Arrays.copyOf(start, blocks);
+		for (int i = 0; i < s.size; i++)
+			if (block[i] >= 0)
+				order[next[block[i]]++] = i;
+
+		final int[][] blockTouched = new int[blocks][];
+		final int reach = COLOR_BLOCK + 3;
+		for (int color = 0; color < 8; color++) {
+			final int cx = color & 1, cy = color >> 1 & 1, cz = color >> 2 & 1;
+			final int hy = (by - cy + 1) / 2, hz = (bz - cz + 1) / 2;
+			int count = (bx - cx + 1) / 2 * hy * hz;
+			IntStream.range(0, count).parallel().forEach(q -> {
+				int b = ((2*(q / (hy*hz)) + cx) * by + 2*(q / hz % hy) + cy) * bz + 2*(q % hz) + cz;
+				if (start[b] == start[b + 1])
+					return;
+				int[] log = new int[reach * reach * reach];
+				int logged = gather(s, order, start[b], start[b + 1], log, 0);
+				blockTouched[b] = Arrays.copyOf(log, logged);
+			});
+		}
+		for (int[] t : blockTouched) {
+			if (t != null) {
+				System.arraycopy(t, 0, touched, touchedCount, t.length);
+				touchedCount += t.length;
+			}
+		}
+		normalizeParallel();
+	}
+
+	/**
+	 * @return The block of gatherAllColored holding the first node of the
+	 *         stencil at a position, or -1 if the stencil misses the grid.
+	 */
+	private int blockOf(double x, double y, double z, int by, int bz) {
+		int i = (int) Math.floor((x - origin.x) / h) - 1;
+		int j = (int) Math.floor((y - origin.y) / h) - 1;
+		int k = (int) Math.floor((z - origin.z) / h) - 1;
+		if (i < -3 || i > xDivs || j < -3 || j > yDivs || k < -3 || k > zDivs)
+			return -1;
+		// A stencil starting before the grid only reaches nodes of the first block.
+		return (Math.max(0, i) / COLOR_BLOCK * by + Math.max(0, j) / COLOR_BLOCK) * bz + Math.max(0, k) / COLOR_BLOCK;
+	}
+
+	/**
+	 * Normalizes the touched nodes in parallel.
+	 */
+	private void normalizeParallel() {
+		final int chunks = (touchedCount + CHUNK - 1) / CHUNK;
+		IntStream.range(0, chunks).parallel().forEach(k -> {
+			for (int t = k * CHUNK, end = Math.min(touchedCount, t + CHUNK); t < end; t++)
+				normalize(touched[t]);
+		});
+	}
+
+	/**
+	 * Adds the live particles in [from, to) of a store to the grid, without normalizing.
+	 */
+	void gather(ParticleStore s, int from, int to) {
+		touchedCount = gather(s, null, from, to, touched, touchedCount);
+	}
+
+	/**
+	 * Adds the live particles in [from, to) of a store, or in slots[from, to)
+	 * if slots is not null, to the grid without normalizing, appending the
+	 * nodes they touch first to a log.
+	 *
+	 * @return The new length of the log.
+	 */
+	private int gather(ParticleStore s, int[] slots, int from, int to, int[] log, int logged) {
+		int chunk = Math.min(CHUNK, to - from);
+		double[][] col = new double[ParticleStore.MASS + 1][chunk];
+		for (int start = from; start < to; start += chunk) {
+			int end = Math.min(to, start + chunk);
+			for (int c = ParticleStore.PX; c <= ParticleStore.MASS; c++) {
+				if (slots != null)
+					s.readColumn(c, slots, start, end, col[c], 0);
+				else
+					s.readColumn(c, start, end, col[c], 0);
+			}
+			for (int t = start; t < end; t++) {
+				if (s.id[slots != null ? slots[t] : t] < 0)
+					continue;
+				int o = t - start;
+				double m = col[ParticleStore.MASS][o];
+				logged = gather(col[ParticleStore.PX][o], col[ParticleStore.PY][o], col[ParticleStore.PZ][o], m,
+						m*col[ParticleStore.VX][o], m*col[ParticleStore.VY][o], m*col[ParticleStore.VZ][o], log, logged);
+			}
+		}
+		return logged;
+	}
+
+	/**
+	 * Creates an empty tile covering the nodes that the live particles in
+	 * [from, to) of a store can reach.
+	 *
+	 * @return The tile, or null if none of the particles reach the grid.
+	 */
+	private Grid tile(ParticleStore s, int from, int to) {
+		int[] lo = new int[3], hi = new int[3];
+		int[] divs = {xDivs, yDivs, zDivs};
+		double[] o = {origin.x, origin.y, origin.z};
+		double[] x = new double[CHUNK];
+		for (int a = 0; a < 3; a++) {
+			// Base nodes as computed by gather, so the tile holds exactly the nodes it reaches.
+			int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+			for (int start = from; start < to; start += CHUNK) {
+				int end = Math.min(to, start + CHUNK);
+				s.readColumn(ParticleStore.PX + a, start, end, x, 0);
+				for (int i = start; i < end; i++) {
+					if (s.id[i] < 0)
+						continue;
+					int b = (int) Math.floor((x[i - start] - o[a]) / h) - 1;
+					if (b < min) min = b;
+					if (b > max) max = b;
+				}
+			}
+			if (min > max)
+				return null;
+			lo[a] = Math.max(0, min);
+			hi[a] = (int) Math.min(divs[a], (long) max + 3);
+			if (lo[a] > hi[a])
+				return null;
+		}
+		return new Grid(this, lo[0], lo[1], lo[2], hi[0] - lo[0], hi[1] - lo[1], hi[2] - lo[2]);
 	}
 
-	// Please on't judge me for this code.
+	/**
+	 * Adds the nodes of tiles in slab i of this grid into it, in tile order.
+	 *
+	 * @return The nodes of the slab touched by any tile.
+	 */
+	private int[] reduce(Grid[] tiles, int i) {
+		int[] slab = new int[ny * nz];
+		int count = 0;
+		for (Grid t : tiles) {
+			if (t == null || i < t.i0 || i > t.i0 + t.xDivs)
+				continue;
+			for (int j = t.j0; j <= t.j0 + t.yDivs; j++) {
+				for (int k = t.k0; k <= t.k0 + t.zDivs; k++) {
+					int tnode = t.index(i, j, k);
+					if (!t.isTouched[tnode])
+						continue;
+					int node = index(i, j, k), n = node * nodeStride, tn = tnode * t.nodeStride;
+					for (int f = 0; f < FIELDS; f++)
+						data[n + f*fieldStride] += t.data[tn + f*t.fieldStride];
+					if (!isTouched[node]) {
+						isTouched[node] = true;
+						slab[count++] = node;
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(slab, count);
+	}
+
+	/**
+	 * Adds a particle's mass and momentum to the 4x4x4 nodes within reach of
+	 * the kernel. Nodes outside the grid are skipped.
+	 *
+	 * @param p The particle.
+	 */
 	public void gather(Particle p) {
-		Point3d cellPos = new Point3d();
-		cellPos.sub(p.pos, origin);
-		cellPos.scale(1/h);
-		Point3d gridPoint = new Point3d();
-		double weight;
-		
-		// Actually do the gathering. This gonna error
-		for (gridPoint.x = (Math.max(cellPos.x - 1, 0)); gridPoint.x < Math.min(xDivs, cellPos.x + 2); gridPoint.x++) {
-			for (gridPoint.y = (Math.max(cellPos.y - 1, 0)); gridPoint.y < Math.min(yDivs, cellPos.y + 2); gridPoint.y++) {
-				for (gridPoint.z = (Math.max(cellPos.z - 1, 0)); gridPoint.z < Math.min(zDivs, cellPos.z + 2); gridPoint.z++) {
-					weight = cubicWeight(cellPos, gridPoint);
-					masses[(int)gridPoint.x][(int)gridPoint.y][(int)gridPoint.z] += weight*p.mass;
-					momenta[(int)gridPoint.x][(int)gridPoint.y][(int)gridPoint.z][0] += weight*p.momentum.x;
-					momenta[(int)gridPoint.x][(int)gridPoint.y][(int)gridPoint.z][1] += weight*p.momentum.y;
-					momenta[(int)gridPoint.x][(int)gridPoint.y][(int)gridPoint.z][2] += weight*p.momentum.z;
+		gather(p.pos.x, p.pos.y, p.pos.z, p.mass, p.momentum.x, p.momentum.y, p.momentum.z);
+	}
+
+	/**
+	 * Adds a particle's mass and momentum to the 4x4x4 nodes within reach of
+	 * the kernel. Nodes outside the grid are skipped.
+	 */
+	public void gather(double x, double y, double z, double m, double px, double py, double pz) {
+		touchedCount = gather(x, y, z, m, px, py, pz, touched, touchedCount);
+	}
+
+	/**
+	 * Adds a particle to the grid, appending the nodes it touches first to a log.
+	 *
+	 * @return The new length of the log.
+	 */
+	private int gather(double x, double y, double z, double m, double px, double py, double pz, int[] log, int logged) {
+		double cx = (x - origin.x) / h, cy = (y - origin.y) / h, cz = (z - origin.z) / h;
+		// The nodes within reach are floor(c)-1 .. floor(c)+2 on each axis.
+		int bx = (int) Math.floor(cx) - 1, by = (int) Math.floor(cy) - 1, bz = (int) Math.floor(cz) - 1;
+		for (int a = 0; a < 4; a++) {
+			int i = bx + a;
+			if (i < i0 || i > i0 + xDivs)
+				continue;
+			double wx = cubicWeight(cx - i);
+			for (int b = 0; b < 4; b++) {
+				int j = by + b;
+				if (j < j0 || j > j0 + yDivs)
+					continue;
+				double wxy = wx * cubicWeight(cy - j);
+				for (int c = 0; c < 4; c++) {
+					int k = bz + c;
+					if (k < k0 || k > k0 + zDivs)
+						continue;
+					double w = wxy * cubicWeight(cz - k);
+					int node = index(i, j, k), n = node * nodeStride;
+					if (!isTouched[node]) {
+						isTouched[node] = true;
+						log[logged++] = node;
+					}
+					data[n] += w*m;
+					data[n + fieldStride] += w*px;
+					data[n + 2*fieldStride] += w*py;
+					data[n + 3*fieldStride] += w*pz;
 				}
 			}
 		}
-		
-		// Divide momentum/mass to get final velocity.
-		for (int i = 0; i < xDivs; i++)
-			for (int j = 0; j < yDivs; j++)
-				for (int k = 0; k < zDivs; k++)
-					for (int l = 0; l < 3; l++)
-						momenta[i][j][k][l] /= masses[i][j][k]; 
-						
-					
-					
-		
-		
-	}
-	
+		return logged;
+	}
+
+	/**
+	 * Divides the momentum of every touched node by its mass, leaving the
+	 * node's velocity. Nodes without mass get zero velocity. Call once, after
+	 * all particles have been gathered.
+	 */
+	public void normalize() {
+		for (int t = 0; t < touchedCount; t++)
+			normalize(touched[t]);
+	}
+
+	void normalize(int node) {
+		int n = node * nodeStride;
+		double m = data[n];
+		double inv = m > 0 ? 1 / m : 0;
+		data[n + fieldStride] *= inv;
+		data[n + 2*fieldStride] *= inv;
+		data[n + 3*fieldStride] *= inv;
+	}
+
 	public void scatter(Particle p) {
-		
+
 	}
-	
+
 	public double cubicWeight(Point3d p, Point3d q) {
 		return cubicWeight(p.x-q.x)*cubicWeight(p.y-q.y)*cubicWeight(p.z-q.z);
 	}
-	
-	public double cubicWeight(double x) {
+
+	public static double cubicWeight(double x) {
 		double absX = (x<0) ? -x : x;
 		if (absX < 1)
 			return 0.5*absX*absX*absX - absX*absX + 2.0/3;
@@ -76,18 +542,22 @@ public class Grid {
 
 
 	public static void main(String args[]) {
-		Grid g = new Grid(new Point3d(0,0,0),2,3,3,3);
-		Particle p = new Particle(new Point3d(3,3,3), new Vector3d(1,0,0), 5);
-		System.out.println("Mass: " + p.mass);
-		g.gather(p);
-		double m = 0;
-
-		for (int i = 0; i <= 3; i++) 
-			for (int j = 0; j <= 3; j++)
-				for (int k = 0; k <= 3; k++)
-		m += g.masses[i][j][k];
-		System.out.println(m);
-		
+		for (Layout layout : Layout.values()) {
+			Grid g = new Grid(new Point3d(0,0,0),2,3,3,3, layout);
+			Particle p = new Particle(new Point3d(3,3,3), new Vector3d(1,0,0), 5);
+			System.out.println("Mass: " + p.mass);
+			g.gather(p);
+			double m = 0;
+
+			for (int i = 0; i <= 3; i++)
+				for (int j = 0; j <= 3; j++)
+					for (int k = 0; k <= 3; k++)
+			m += g.getMass(i, j, k);
+			System.out.println(layout + ": " + m);
+			g.normalize();
+			Vector3d v = new Vector3d();
+			g.getMomentum(1, 1, 1, v);
+			System.out.println("Velocity at (1, 1, 1): " + v);
+		}
 	}
 }
-
@@ -0,0 +1,167 @@
+package snapshot;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Orders particles along a Z-order (Morton) curve through their bounding box,
+ * so particles that are close in space are mostly close in memory. Passes that
+ * visit particles in index order and touch their neighbourhood, such as
+ * particle-to-grid transfers, then stay largely within cache.
+ *
+ * Each axis of the bounding box is divided into 2^{@value #BITS_PER_AXIS}
+ * cells, and the interleaved cell coordinates are sorted with a stable,
+ * parallel least-significant-digit radix sort. Dead slots sort after every
+ * live particle, so a reorder also compacts the store. A sorter keeps its scratch
+ * arrays between calls, so it should be reused, but not shared between
+ * threads.
+ */
+public class MortonSorter {
+	public static final int BITS_PER_AXIS = 10;
+
+	private static final int RADIX_BITS = 10;
+	private static final int RADIX = 1 << RADIX_BITS;
+	/** The key of a dead slot, above every Morton code. */
+	private static final int DEAD = 1 << 3*BITS_PER_AXIS;
+	private static final int PASSES = (3*BITS_PER_AXIS + 1 + RADIX_BITS - 1) / RADIX_BITS;
+	/** Fewest particles worth handing to a thread of their own. */
+	private static final int MIN_SLICE = 1 << 14;
+
+	private int[] keys = new int[0], keysTmp = new int[0];
+	private int[] perm = new int[0], permTmp = new int[0];
+
+	/**
+	 * Computes the Morton order of a store's particles.
+	 *
+	 * @param s The store to sort. It is not modified.
+	 * @return A permutation p of [0, s.size) such that particle p[i] comes i-th
+	 *         along the curve, with the live particles in the first
+	 *         s.getLiveCount() entries. The array is reused by the next call
+	 *         and may be longer than s.size.
+	 */
+	public int[] sort(ParticleStore s) {
+		final int n = s.size;
+		if (keys.length < n) {
+			keys = new int[n];
+			keysTmp = new int[n];
+			perm = new int[n];
+			permTmp = new int[n];
+		}
+		final int slices = Math.max(1, Math.min(4*ForkJoinPool.getCommonPoolParallelism(), n / MIN_SLICE));
+		final double[] box = bounds(s, slices);
+		final double sx = scale(box[0], box[3]), sy = scale(box[1], box[4]), sz = scale(box[2], box[5]);
+		IntStream.range(0, slices).parallel().forEach(t -> {
+			int from = sliceStart(t, slices, n), to = sliceStart(t+1, slices, n);
+			for (int i = from; i < to; i++) {
+				perm[i] = i;
+				if (!s.isAlive(i)) {
+					keys[i] = DEAD;
+					continue;
+				}
+				keys[i] = interleave((int) ((s.get(ParticleStore.PX, i) - box[0]) * sx))
+						| interleave((int) ((s.get(ParticleStore.PY, i) - box[1]) * sy)) << 1
+						| interleave((int) ((s.get(ParticleStore.PZ, i) - box[2]) * sz)) << 2;
+			}
+		});
+
+		final int[][] offsets = new int[slices][RADIX];
+		for (int pass = 0; pass < PASSES; pass++) {
+			final int shift = pass * RADIX_BITS;
+			IntStream.range(0, slices).parallel().forEach(t -> {
+				int[] count = offsets[t];
+				Arrays.fill(count, 0);
+				for (int i = sliceStart(t, slices, n), end = sliceStart(t+1, slices, n); i < end; i++)
+					count[(keys[i] >>> shift) & (RADIX - 1)]++;
+			});
+			// Slices scatter into consecutive runs of each bucket, which keeps the sort stable.
+			int sum = 0;
+			boolean trivial = false;
+			for (int d = 0; d < RADIX; d++) {
+				int bucket = 0;
+				for (int t = 0; t < slices; t++) {
+					int c = offsets[t][d];
+					offsets[t][d] = sum;
+					sum += c;
+					bucket += c;
+				}
+				trivial |= bucket == n;
+			}
+			if (trivial)
+				continue;
+			IntStream.range(0, slices).parallel().forEach(t -> {
+				int[] next = offsets[t];
+				for (int i = sliceStart(t, slices, n), end = sliceStart(t+1, slices, n); i < end; i++) {
+					int j = next[(keys[i] >>> shift) & (RADIX - 1)]++;
+					keysTmp[j] = keys[i];
+					permTmp[j] = perm[i];
+				}
+			});
+			int[] tmp = keys; keys = keysTmp; keysTmp = tmp;
+			tmp = perm; perm = permTmp; permTmp = tmp;
+		}
+		return perm;
+	}
+
+	/**
+	 * Writes the live particles of src into dst in Morton order, keeping their
+	 * ids and dropping dead slots.
+	 *
+	 * @param src The store to read from.
+	 * @param dst A different store of the same precision, with room for src's live particles.
+	 */
+	public void reorder(ParticleStore src, ParticleStore dst) {
+		dst.permuteFrom(src, sort(src), src.getLiveCount());
+	}
+
+	/**
+	 * Spreads the low 10 bits of v so that two zero bits follow each one.
+	 */
+	static int interleave(int v) {
+		v &= 0x3ff;
+		v = (v | v << 16) & 0x30000ff;
+		v = (v | v << 8) & 0x300f00f;
+		v = (v | v << 4) & 0x30c30c3;
+		v = (v | v << 2) & 0x9249249;
+		return v;
+	}
+
+	private static double scale(double min, double max) {
+		double extent = max - min;
+		// Map [min, max] onto cells 0 .. 2^bits - 1; NaN coordinates land in cell 0.
+		return extent > 0 ? ((1 << BITS_PER_AXIS) - 1) / extent : 0;
+	}
+
+	private static int sliceStart(int t, int slices, int n) {
+		return (int) ((long) t * n / slices);
+	}
+
+	/**
+	 * @return min x, y, z followed by max x, y, z of the live particle positions.
+	 */
+	private static double[] bounds(final ParticleStore s, final int slices) {
+		final double[][] partial = new double[slices][];
+		IntStream.range(0, slices).parallel().forEach(t -> {
+			double[] b = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+					Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+			for (int i = sliceStart(t, slices, s.size), end = sliceStart(t+1, slices, s.size); i < end; i++) {
+				if (!s.isAlive(i))
+					continue;
+				for (int c = 0; c < 3; c++) {
+					double v = s.get(ParticleStore.PX + c, i);
+					if (v < b[c]) b[c] = v;
+					if (v > b[c+3]) b[c+3] = v;
+				}
+			}
+			partial[t] = b;
+		});
+		double[] box = partial[0];
+		for (int t = 1; t < slices; t++) {
+			for (int c = 0; c < 3; c++) {
+				box[c] = Math.min(box[c], partial[t][c]);
+				box[c+3] = Math.max(box[c+3], partial[t][c+3]);
+			}
+		}
+		return box;
+	}
+}
@@ -0,0 +1,1076 @@
+package snapshot;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import javax_.vecmath.Tuple3d;
+
+/**
+ * Columnar (structure-of-arrays) storage for the state of a set of particles.
+ * Every attribute lives in its own primitive array, so a pass over positions
+ * or velocities streams through contiguous memory instead of chasing one
+ * object per particle.
+ *
+ * Momentum is not stored; it is always mass times velocity.
+ *
+ * Columns are stored in double or float precision as chosen by the store's
+ * {@link Precision}. For each group exactly one of the double array (px, vx,
+ * ...) and the float array (pxf, vxf, ...) is non-null. Hot loops may branch
+ * on precision once and use the arrays directly; other code can go through
+ * {@link #get(int, int)} and {@link #set(int, int, double)}, or move column
+ * ranges with {@link #readColumn} and {@link #writeColumn}.
+ *
+ * Positions can optionally be mirrored into an off-heap buffer of interleaved
+ * xyz floats (see {@link #enablePosBuffer()}), which renderers can hand to
+ * OpenGL without building an intermediate Java array.
+ *
+ * Positions and velocities carry a version per block of {@link #BLOCK_SIZE}
+ * particles, so consumers such as {@link SnapshotExporter} can skip blocks
+ * that have not changed since they last looked. Writes through this class
+ * reset the version of the blocks they touch; code that writes the arrays
+ * directly must call {@link #markChanged(int, int, int)}.
+ *
+ * Every particle has an id that follows it when the store is reordered (see
+ * {@link #permuteFrom(ParticleStore, int[])}), so it can be tracked across
+ * Snapshots stored in different orders. Ids start out equal to the index.
+ *
+ * Properties beyond position, velocity and mass are added as named
+ * {@link Attribute}s, allocated only when registered.
+ *
+ * A store is allocated for a fixed capacity, of which the first {@link #size}
+ * slots are in use. Particles are added with {@link #spawn(int, int[])},
+ * which reuses killed slots through a free list before growing size, and
+ * removed with {@link #kill(int)}, which leaves a dead slot (id -1, zero
+ * velocity and mass) in place so other particles keep their indices. Dead
+ * slots are squeezed out by {@link #compact()}, {@link #compactFrom} or a
+ * Morton reorder, which callers run when {@link #getFragmentation()} gets
+ * too high.
+ */
+public class ParticleStore implements java.io.Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * How particle state is stored.
+	 */
+	public enum Precision {
+		/** Everything in double precision. */
+		DOUBLE,
+		/** Positions in double precision; velocities and masses in single precision. */
+		MIXED,
+		/** Everything in single precision. */
+		FLOAT,
+	}
+
+	/** Column numbers for generic access. */
+	public static final int PX = 0, PY = 1, PZ = 2, VX = 3, VY = 4, VZ = 5, MASS = 6;
+	public static final int COLUMNS = 7;
+
+	/** Particles per block of change tracking. */
+	public static final int BLOCK_SHIFT = 10, BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+	/** Particles per task of a parallel copy; a whole number of blocks, large enough to amortize scheduling. */
+	private static final int COPY_CHUNK = 64 * BLOCK_SIZE;
+
+	/**
+	 * Source of block versions. A version identifies the contents of a block
+	 * wherever it is copied, so it must be unique across all stores.
+	 */
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	/**
+	 * The number of slots in use. Every particle lives below size, but slots
+	 * below size may be dead (see {@link #isAlive(int)}). Only the store changes it.
+	 */
+	public int size;
+
+	/**
+	 * The number of slots allocated.
+	 */
+	public final int capacity;
+
+	public final Precision precision;
+
+	public final double[] px, py, pz;
+	public final double[] vx, vy, vz;
+	public final double[] mass;
+
+	public final float[] pxf, pyf, pzf;
+	public final float[] vxf, vyf, vzf;
+	public final float[] massf;
+
+	/**
+	 * The id of the particle at each index, or -1 for a dead slot. Code that
+	 * writes it directly must call {@link #markReordered()}.
+	 */
+	public final int[] id;
+
+	/**
+	 * Off-heap mirror of the positions as interleaved xyz floats, or null if disabled.
+	 */
+	private transient FloatBuffer posBuffer;
+
+	/**
+	 * Version of each block of positions and velocities. 0 means changed since
+	 * last versioned; see {@link #getVersion(int, int)}.
+	 */
+	private final long[] posVersions, velVersions;
+
+	/**
+	 * Identifies the slot layout: the ids, size and free list. Equal values
+	 * mean equal layouts. Every new, deserialized or relaid store gets a value
+	 * no other store has had, so only copyOrder makes two stores share one.
+	 */
+	private long order;
+
+	/** The number of live particles. */
+	private int live;
+	/** Dead slots below size, reused last in first out. */
+	private int[] free = new int[0];
+	private int freeCount;
+	/** The id given to the next spawned particle. */
+	private int nextId;
+
+	/** Statistics of the current contents, or null until asked for. */
+	private transient SnapshotStats stats;
+	/** Statistics refilled in place by reusableStats() and copyFrom, or null until needed. */
+	private transient SnapshotStats ownStats;
+
+	/** Extra attributes by name in registration order, or null until one is registered. */
+	private LinkedHashMap<String, Attribute> attributes;
+
+	/**
+	 * Creates a double-precision store for a given number of particles, all zeroed.
+	 *
+	 * @param size The number of particles.
+	 */
+	public ParticleStore(int size) {
+		this(size, Precision.DOUBLE);
+	}
+
+	/**
+	 * Creates a store for a given number of particles, all zeroed.
+	 *
+	 * @param size The number of particles.
+	 * @param precision How to store particle state.
+	 */
+	public ParticleStore(int size, Precision precision) {
+		this(size, precision, size);
+	}
+
+	/**
+	 * Creates a store with room for more particles than it starts with.
+	 *
+	 * @param size The number of particles, all zeroed.
+	 * @param precision How to store particle state.
+	 * @param capacity The largest number of slots the store can use.
+	 */
+	public ParticleStore(int size, Precision precision, int capacity) {
+		if (size < 0 || size > capacity)
+			throw new IllegalArgumentException("Size " + size + " does not fit capacity " + capacity);
+		this.size = size;
+		this.capacity = capacity;
+		this.precision = precision;
+		boolean doublePos = precision != Precision.FLOAT;
+		boolean doubleRest = precision == Precision.DOUBLE;
+		px = doublePos ? new double[capacity] : null;
+		py = doublePos ? new double[capacity] : null;
+		pz = doublePos ? new double[capacity] : null;
+		pxf = doublePos ? null : new float[capacity];
+		pyf = doublePos ? null : new float[capacity];
+		pzf = doublePos ? null : new float[capacity];
+		vx = doubleRest ? new double[capacity] : null;
+		vy = doubleRest ? new double[capacity] : null;
+		vz = doubleRest ? new double[capacity] : null;
+		mass = doubleRest ? new double[capacity] : null;
+		vxf = doubleRest ? null : new float[capacity];
+		vyf = doubleRest ? null : new float[capacity];
+		vzf = doubleRest ? null : new float[capacity];
+		massf = doubleRest ? null : new float[capacity];
+		id = new int[capacity];
+		for (int i = 0; i < capacity; i++)
+			id[i] = i < size ? i : -1;
+		live = size;
+		nextId = size;
+		order = VERSIONS.incrementAndGet();
+		posVersions = new long[(capacity + BLOCK_SIZE - 1) >> BLOCK_SHIFT];
+		velVersions = new long[posVersions.length];
+	}
+
+	/**
+	 * Creates a deep copy of another store, with the same precision and capacity.
+	 *
+	 * @param other The store to copy.
+	 */
+	public ParticleStore(ParticleStore other) {
+		this(other.size, other.precision, other.capacity);
+		if (other.posBuffer != null)
+			posBuffer = allocateFloats(3*capacity);
+		copyFrom(other);
+	}
+
+	/**
+	 * @return Whether positions are stored in double precision.
+	 */
+	public boolean hasDoublePositions() {
+		return px != null;
+	}
+
+	/**
+	 * @return Whether velocities and masses are stored in double precision.
+	 */
+	public boolean hasDoubleVelocities() {
+		return vx != null;
+	}
+
+	/**
+	 * Overwrites the contents of this store with those of another whose size
+	 * fits this store's capacity. Columns are converted if the two stores
+	 * differ in precision. Runs in parallel over chunks of particles, each
+	 * copying every column, attribute and its part of the position buffer.
+	 *
+	 * @param other The store to copy from.
+	 */
+	public void copyFrom(final ParticleStore other) {
+		checkFits(other);
+		copyOrder(other);
+		final Attribute[][] pairs = attributePairs(other);
+		final FloatBuffer srcPos = posBuffer != null && other.posBuffer != null ? other.posBuffer : null;
+		final int n = other.size;
+		IntStream.range(0, chunkCount(n)).parallel().forEach(k -> {
+			int from = k * COPY_CHUNK, to = Math.min(n, from + COPY_CHUNK);
+			for (int c = 0; c < COLUMNS; c++)
+				copyColumn(other, c, from, to);
+			for (Attribute[] p : pairs)
+				p[1].copyFrom(p[0], from, to);
+			if (srcPos != null) {
+				FloatBuffer src = srcPos.duplicate(), dst = posBuffer.duplicate();
+				src.limit(3*to).position(3*from);
+				dst.position(3*from);
+				dst.put(src);
+			} else {
+				syncPosBuffer(from, to);
+			}
+		});
+		copyVersions(other, PX, 0, n);
+		copyVersions(other, VX, 0, n);
+		// Copied by value, so statistics refilled by the other store later stay its own.
+		if (other.stats == null) {
+			stats = null;
+		} else {
+			SnapshotStats s = reusableStats();
+			s.merge(other.stats);
+			stats = s;
+		}
+	}
+
+	/**
+	 * Copies the used part of one column from another store whose size fits
+	 * this store's capacity, and marks it changed. Does not update the
+	 * position buffer. Runs in parallel.
+	 *
+	 * @param other The store to copy from.
+	 * @param column The column number.
+	 */
+	public void copyColumn(final ParticleStore other, final int column) {
+		checkFits(other);
+		final int n = other.size;
+		IntStream.range(0, chunkCount(n)).parallel().forEach(k ->
+				copyColumn(other, column, k * COPY_CHUNK, Math.min(n, (k+1) * COPY_CHUNK)));
+		markChanged(column, 0, n);
+	}
+
+	private void copyColumn(ParticleStore other, int column, int from, int to) {
+		Object src = other.column(column), dst = column(column);
+		if (src instanceof double[] && dst instanceof double[]) {
+			System.arraycopy(src, from, dst, from, to - from);
+		} else if (src instanceof float[] && dst instanceof float[]) {
+			System.arraycopy(src, from, dst, from, to - from);
+		} else {
+			for (int i = from; i < to; i++)
+				set(column, i, other.get(column, i));
+		}
+	}
+
+	private static int chunkCount(int n) {
+		return (n + COPY_CHUNK - 1) / COPY_CHUNK;
+	}
+
+	private void checkFits(ParticleStore other) {
+		if (other.size > capacity)
+			throw new IllegalArgumentException("Store of size " + other.size + " does not fit capacity " + capacity);
+	}
+
+	/**
+	 * Gets the array backing a column.
+	 *
+	 * @param column The column number.
+	 * @return A double[] or float[] of length capacity.
+	 */
+	public Object column(int column) {
+		switch (column) {
+		case PX: return px != null ? px : pxf;
+		case PY: return py != null ? py : pyf;
+		case PZ: return pz != null ? pz : pzf;
+		case VX: return vx != null ? vx : vxf;
+		case VY: return vy != null ? vy : vyf;
+		case VZ: return vz != null ? vz : vzf;
+		case MASS: return mass != null ? mass : massf;
+		default: throw new IndexOutOfBoundsException("No column " + column);
+		}
+	}
+
+	/**
+	 * Reads one value. Does not consult the position buffer.
+	 *
+	 * @param column The column number.
+	 * @param i The particle index.
+	 */
+	public double get(int column, int i) {
+		switch (column) {
+		case PX: return px != null ? px[i] : pxf[i];
+		case PY: return py != null ? py[i] : pyf[i];
+		case PZ: return pz != null ? pz[i] : pzf[i];
+		case VX: return vx != null ? vx[i] : vxf[i];
+		case VY: return vy != null ? vy[i] : vyf[i];
+		case VZ: return vz != null ? vz[i] : vzf[i];
+		case MASS: return mass != null ? mass[i] : massf[i];
+		default: throw new IndexOutOfBoundsException("No column " + column);
+		}
+	}
+
+	/**
+	 * Writes one value, rounding it if the column is single precision. Does not
+	 * update the position buffer.
+	 *
+	 * @param column The column number.
+	 * @param i The particle index.
+	 * @param v The value.
+	 */
+	public void set(int column, int i, double v) {
+		stats = null;
+		switch (column) {
+		case PX: if (px != null) px[i] = v; else pxf[i] = (float) v; posVersions[i >> BLOCK_SHIFT] = 0; break;
+		case PY: if (py != null) py[i] = v; else pyf[i] = (float) v; posVersions[i >> BLOCK_SHIFT] = 0; break;
+		case PZ: if (pz != null) pz[i] = v; else pzf[i] = (float) v; posVersions[i >> BLOCK_SHIFT] = 0; break;
+		case VX: if (vx != null) vx[i] = v; else vxf[i] = (float) v; velVersions[i >> BLOCK_SHIFT] = 0; break;
+		case VY: if (vy != null) vy[i] = v; else vyf[i] = (float) v; velVersions[i >> BLOCK_SHIFT] = 0; break;
+		case VZ: if (vz != null) vz[i] = v; else vzf[i] = (float) v; velVersions[i >> BLOCK_SHIFT] = 0; break;
+		case MASS: if (mass != null) mass[i] = v; else massf[i] = (float) v; break;
+		default: throw new IndexOutOfBoundsException("No column " + column);
+		}
+	}
+
+	/**
+	 * Copies values of particles in [from, to) of a column into a double array.
+	 *
+	 * @param column The column number.
+	 * @param from The first particle index, inclusive.
+	 * @param to The last particle index, exclusive.
+	 * @param dst The array to write into.
+	 * @param offset The index in dst that receives particle from.
+	 */
+	public void readColumn(int column, int from, int to, double[] dst, int offset) {
+		Object a = column(column);
+		if (a instanceof double[]) {
+			System.arraycopy(a, from, dst, offset, to - from);
+		} else {
+			float[] f = (float[]) a;
+			for (int i = from; i < to; i++)
+				dst[offset++] = f[i];
+		}
+	}
+
+	/**
+	 * Copies values of the particles in slots[from, to) of a column into a double array.
+	 *
+	 * @param column The column number.
+	 * @param slots Particle indices.
+	 * @param from The first entry of slots to read, inclusive.
+	 * @param to The last entry of slots to read, exclusive.
+	 * @param dst The array to write into.
+	 * @param offset The index in dst that receives particle slots[from].
+	 */
+	public void readColumn(int column, int[] slots, int from, int to, double[] dst, int offset) {
+		Object a = column(column);
+		if (a instanceof double[]) {
+			double[] d = (double[]) a;
+			for (int t = from; t < to; t++)
+				dst[offset++] = d[slots[t]];
+		} else {
+			float[] f = (float[]) a;
+			for (int t = from; t < to; t++)
+				dst[offset++] = f[slots[t]];
+		}
+	}
+
+	/**
+	 * Copies values from a double array into particles [from, to) of a column,
+	 * rounding them if the column is single precision. Does not update the
+	 * position buffer.
+	 *
+	 * @param column The column number.
+	 * @param from The first particle index, inclusive.
+	 * @param to The last particle index, exclusive.
+	 * @param src The array to read from.
+	 * @param offset The index in src that holds particle from.
+	 */
+	public void writeColumn(int column, int from, int to, double[] src, int offset) {
+		Object a = column(column);
+		if (a instanceof double[]) {
+			System.arraycopy(src, offset, a, from, to - from);
+		} else {
+			float[] f = (float[]) a;
+			for (int i = from; i < to; i++)
+				f[i] = (float) src[offset++];
+		}
+		markChanged(column, from, to);
+	}
+
+	/**
+	 * Gets an attribute, registering it first if the store does not have it yet.
+	 * A new attribute is zeroed.
+	 *
+	 * @param name The attribute name.
+	 * @param kind The shape of its values.
+	 * @return The attribute.
+	 * @throws IllegalArgumentException If the name is registered with another kind.
+	 */
+	public Attribute attribute(String name, Attribute.Kind kind) {
+		Attribute a = getAttribute(name);
+		if (a == null) {
+			if (attributes == null)
+				attributes = new LinkedHashMap<String, Attribute>();
+			a = new Attribute(name, kind, capacity, hasDoubleVelocities());
+			attributes.put(name, a);
+		} else if (a.kind != kind) {
+			throw new IllegalArgumentException("Attribute " + name + " is a " + a.kind + ", not a " + kind);
+		}
+		return a;
+	}
+
+	/**
+	 * @param name The attribute name.
+	 * @return The attribute, or null if it is not registered.
+	 */
+	public Attribute getAttribute(String name) {
+		return attributes == null ? null : attributes.get(name);
+	}
+
+	/**
+	 * @return The registered attributes, in registration order.
+	 */
+	public Collection<Attribute> getAttributes() {
+		return attributes == null ? Collections.<Attribute>emptyList()
+				: Collections.unmodifiableCollection(attributes.values());
+	}
+
+	/**
+	 * Unregisters an attribute and frees its columns.
+	 *
+	 * @param name The attribute name.
+	 * @return Whether the attribute was registered.
+	 */
+	public boolean removeAttribute(String name) {
+		return attributes != null && attributes.remove(name) != null;
+	}
+
+	/**
+	 * Makes this store's attributes a copy of another's, registering and
+	 * removing attributes as needed.
+	 *
+	 * @param other The store to copy from, whose size fits this store's capacity.
+	 */
+	public void copyAttributes(final ParticleStore other) {
+		final Attribute[][] pairs = attributePairs(other);
+		IntStream.range(0, chunkCount(other.size)).parallel().forEach(k -> {
+			for (Attribute[] p : pairs)
+				p[1].copyFrom(p[0], k * COPY_CHUNK, Math.min(other.size, (k+1) * COPY_CHUNK));
+		});
+	}
+
+	/**
+	 * Makes this store's attributes match those of another by name and kind.
+	 *
+	 * @return Pairs of each attribute of other and its counterpart here.
+	 */
+	private Attribute[][] attributePairs(ParticleStore other) {
+		Attribute[][] pairs = new Attribute[other.getAttributes().size()][];
+		int k = 0;
+		for (Attribute a : other.getAttributes())
+			pairs[k++] = new Attribute[] { a, attribute(a.name, a.kind) };
+		if (attributes != null)
+			attributes.keySet().retainAll(other.attributes == null
+					? Collections.<String>emptySet() : other.attributes.keySet());
+		return pairs;
+	}
+
+	/**
+	 * @return The number of change-tracking blocks covering the slots in use,
+	 *         the last of which may be partial.
+	 */
+	public int blockCount() {
+		return (size + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+	}
+
+	/**
+	 * Records that particles in [from, to) of a column were written through the
+	 * arrays. Positions and velocities are tracked as groups; a change of mass
+	 * only invalidates the statistics.
+	 *
+	 * @param column The column number.
+	 * @param from The first particle index, inclusive.
+	 * @param to The last particle index, exclusive.
+	 */
+	public void markChanged(int column, int from, int to) {
+		stats = null;
+		long[] v = versions(column);
+		if (v != null && from < to)
+			Arrays.fill(v, from >> BLOCK_SHIFT, ((to - 1) >> BLOCK_SHIFT) + 1, 0);
+	}
+
+	/**
+	 * Gives blocks in [from, to) of a column group the versions they have in
+	 * another store, after all columns of the group were copied from it.
+	 *
+	 * @param other The store the group was copied from, of the same capacity or larger.
+	 * @param column Any column of the group.
+	 * @param from The first particle index; must be at a block boundary.
+	 * @param to The last particle index, exclusive; a block boundary or size.
+	 */
+	public void copyVersions(ParticleStore other, int column, int from, int to) {
+		long[] v = versions(column);
+		if (v != null && from < to)
+			System.arraycopy(other.versions(column), from >> BLOCK_SHIFT, v, from >> BLOCK_SHIFT,
+					((to - 1) >> BLOCK_SHIFT) - (from >> BLOCK_SHIFT) + 1);
+	}
+
+	/**
+	 * Gets the version of a block of a column group. Two blocks with the same
+	 * non-zero version, in this or any other store, hold the same values. 0
+	 * means the block has changed since it was last given a version.
+	 *
+	 * @param column Any position or velocity column.
+	 * @param block The block number.
+	 * @return The version, or 0.
+	 */
+	public long getVersion(int column, int block) {
+		return versions(column)[block];
+	}
+
+	/**
+	 * Gives a block that has changed a fresh version, so later readers can tell
+	 * whether it changes again.
+	 *
+	 * @return The block's version.
+	 */
+	long stampVersion(int column, int block) {
+		long[] v = versions(column);
+		if (v[block] == 0)
+			v[block] = VERSIONS.incrementAndGet();
+		return v[block];
+	}
+
+	private long[] versions(int column) {
+		switch (column) {
+		case PX: case PY: case PZ: return posVersions;
+		case VX: case VY: case VZ: return velVersions;
+		case MASS: return null;
+		default: throw new IndexOutOfBoundsException("No column " + column);
+		}
+	}
+
+	/**
+	 * Gets the bounding box, mass, momentum and kinetic energy of the live
+	 * particles, computing them by a parallel reduction unless they are
+	 * already known. Any change through the store's methods, or reported with
+	 * markChanged, makes them be recomputed on the next call.
+	 *
+	 * @return The statistics, which must not be modified.
+	 */
+	public SnapshotStats getStats() {
+		SnapshotStats s = stats;
+		if (s == null)
+			stats = s = SnapshotStats.of(this);
+		return s;
+	}
+
+	/**
+	 * Empties and returns the statistics object this store refills in place,
+	 * for a pass that rewrites the store to gather statistics into and hand
+	 * back with setStats(), without allocating. Statistics obtained earlier
+	 * from this store may be that object, and are no longer valid.
+	 *
+	 * @return Empty statistics owned by this store.
+	 */
+	public SnapshotStats reusableStats() {
+		if (ownStats == null)
+			ownStats = new SnapshotStats();
+		ownStats.reset();
+		stats = null;
+		return ownStats;
+	}
+
+	/**
+	 * Supplies statistics gathered by a pass that produced the current
+	 * contents, so getStats() does not recompute them.
+	 *
+	 * @param s Statistics of exactly the current live particles.
+	 */
+	public void setStats(SnapshotStats s) {
+		stats = s;
+	}
+
+	/**
+	 * @return A value identifying the slot layout (particle order, size and
+	 *         dead slots), equal for stores known to share the same layout.
+	 */
+	public long getOrder() {
+		return order;
+	}
+
+	/**
+	 * Copies the slot layout (ids, size and free list) from another store,
+	 * unless it is already known to be the same. Particle state is not copied.
+	 *
+	 * @param other The store to copy from, whose size fits this store's capacity.
+	 */
+	public void copyOrder(ParticleStore other) {
+		if (other.order != order) {
+			checkFits(other);
+			System.arraycopy(other.id, 0, id, 0, other.size);
+			size = other.size;
+			live = other.live;
+			nextId = other.nextId;
+			if (free.length < other.freeCount)
+				free = new int[other.free.length];
+			System.arraycopy(other.free, 0, free, 0, other.freeCount);
+			freeCount = other.freeCount;
+			order = other.order;
+		}
+	}
+
+	/**
+	 * Records that the id array was written directly, and rebuilds the count of
+	 * live particles and the free list from it.
+	 */
+	public void markReordered() {
+		order = VERSIONS.incrementAndGet();
+		stats = null;
+		live = 0;
+		freeCount = 0;
+		for (int i = size - 1; i >= 0; i--) {
+			if (id[i] >= 0) {
+				live++;
+				nextId = Math.max(nextId, id[i] + 1);
+			} else {
+				pushFree(i);
+			}
+		}
+	}
+
+	/**
+	 * Changes the number of slots in use, as when restoring a recorded frame.
+	 * Slots added get fresh ids and keep whatever state they held; slots
+	 * removed are discarded, live or not.
+	 *
+	 * @param n The new size, at most capacity.
+	 */
+	public void resize(int n) {
+		if (n < 0 || n > capacity)
+			throw new IllegalArgumentException("Size " + n + " does not fit capacity " + capacity);
+		for (int i = size; i < n; i++)
+			id[i] = nextId++;
+		if (n > size) {
+			markChanged(PX, size, n);
+			markChanged(VX, size, n);
+		}
+		size = n;
+		markReordered();
+	}
+
+	/**
+	 * @param i A slot index below size.
+	 * @return Whether a particle lives in slot i.
+	 */
+	public boolean isAlive(int i) {
+		return id[i] >= 0;
+	}
+
+	/**
+	 * @return The number of live particles.
+	 */
+	public int getLiveCount() {
+		return live;
+	}
+
+	/**
+	 * @return The fraction of slots in use that are dead, in [0, 1).
+	 */
+	public double getFragmentation() {
+		return size == 0 ? 0 : (size - live) / (double) size;
+	}
+
+	/**
+	 * Adds zeroed particles with fresh ids, reusing dead slots before growing size.
+	 *
+	 * @param count The number of particles to add.
+	 * @param slots An array to receive the slot of each new particle, or null.
+	 * @return The array of slots, allocated if none was given.
+	 * @throws IllegalStateException If the particles do not fit in the capacity.
+	 */
+	public int[] spawn(int count, int[] slots) {
+		if (count > capacity - live)
+			throw new IllegalStateException("Cannot spawn " + count + " particles: "
+					+ live + " of " + capacity + " slots are taken");
+		if (slots == null)
+			slots = new int[count];
+		for (int k = 0; k < count; k++) {
+			int i = freeCount > 0 ? free[--freeCount] : size++;
+			id[i] = nextId++;
+			setPos(i, 0, 0, 0);
+			setVel(i, 0, 0, 0);
+			set(MASS, i, 0);
+			for (Attribute a : getAttributes())
+				for (int c = 0; c < a.kind.components; c++)
+					a.set(c, i, 0);
+			slots[k] = i;
+		}
+		live += count;
+		if (count > 0)
+			order = VERSIONS.incrementAndGet();
+		return slots;
+	}
+
+	/**
+	 * Removes a particle. Its slot stays in place with id -1 and zero velocity
+	 * and mass, so it neither moves nor contributes to sums, until it is reused
+	 * by spawn or compacted away.
+	 *
+	 * @param i The slot of a live particle.
+	 */
+	public void kill(int i) {
+		killSlot(i);
+		order = VERSIONS.incrementAndGet();
+	}
+
+	/**
+	 * Removes several particles at once.
+	 *
+	 * @param slots The slots of live particles.
+	 * @param count How many entries of slots to use.
+	 */
+	public void kill(int[] slots, int count) {
+		for (int k = 0; k < count; k++)
+			killSlot(slots[k]);
+		if (count > 0)
+			order = VERSIONS.incrementAndGet();
+	}
+
+	private void killSlot(int i) {
+		if (i < 0 || i >= size || id[i] < 0)
+			throw new IllegalArgumentException("Slot " + i + " holds no live particle");
+		id[i] = -1;
+		setVel(i, 0, 0, 0);
+		set(MASS, i, 0);
+		pushFree(i);
+		live--;
+	}
+
+	private void pushFree(int i) {
+		if (freeCount == free.length)
+			free = Arrays.copyOf(free, Math.max(16, 2*freeCount));
+		free[freeCount++] = i;
+	}
+
+	/**
+	 * Finds the live slots, in increasing order. Runs in parallel.
+	 *
+	 * @param out An array of at least getLiveCount() entries, or null.
+	 * @return The array of live slots, allocated if none was given.
+	 */
+	public int[] liveSlots(int[] out) {
+		if (out == null)
+			out = new int[live];
+		final int[] slots = out;
+		final int blocks = blockCount();
+		final int[] start = new int[blocks + 1];
+		IntStream.range(0, blocks).parallel().forEach(b -> {
+			int count = 0;
+			for (int i = b << BLOCK_SHIFT, end = Math.min(size, i + BLOCK_SIZE); i < end; i++)
+				if (id[i] >= 0)
+					count++;
+			start[b+1] = count;
+		});
+		for (int b = 0; b < blocks; b++)
+			start[b+1] += start[b];
+		IntStream.range(0, blocks).parallel().forEach(b -> {
+			int j = start[b];
+			for (int i = b << BLOCK_SHIFT, end = Math.min(size, i + BLOCK_SIZE); i < end; i++)
+				if (id[i] >= 0)
+					slots[j++] = i;
+		});
+		return out;
+	}
+
+	/**
+	 * Removes dead slots by moving live particles down, keeping their order.
+	 * Particle indices change, ids do not.
+	 */
+	public void compact() {
+		if (live == size)
+			return;
+		int[] perm = liveSlots(null);
+		// Each particle moves to a lower or equal slot, so moving them in
+		// increasing order never overwrites one that has yet to move.
+		for (int c = 0; c < COLUMNS; c++)
+			gather(column(c), column(c), perm, 0, live);
+		for (Attribute a : getAttributes())
+			a.gather(a, perm, 0, live);
+		for (int i = 0; i < live; i++)
+			id[i] = id[perm[i]];
+		size = live;
+		syncPosBuffer(0, size);
+		markChanged(PX, 0, size);
+		markChanged(VX, 0, size);
+		markReordered();
+	}
+
+	/**
+	 * Overwrites this store with the live particles of another, in order and
+	 * without dead slots. Runs in parallel.
+	 *
+	 * @param src The store to read from, of the same precision. Must not be this store.
+	 */
+	public void compactFrom(ParticleStore src) {
+		permuteFrom(src, src.liveSlots(null), src.live);
+	}
+
+	/**
+	 * Overwrites this store with the live particles of another, as
+	 * compactFrom(ParticleStore) does, listing them in a scratch array that
+	 * the caller keeps between calls.
+	 *
+	 * @param src The store to read from, of the same precision. Must not be this store.
+	 * @param scratch An array of at least src.getLiveCount() entries, or null.
+	 * @return The scratch array, replaced by one of src.capacity entries if it was too short.
+	 */
+	public int[] compactFrom(ParticleStore src, int[] scratch) {
+		if (scratch == null || scratch.length < src.live)
+			scratch = new int[src.capacity];
+		permuteFrom(src, src.liveSlots(scratch), src.live);
+		return scratch;
+	}
+
+	/**
+	 * Overwrites this store with the particles of another store in a new order:
+	 * particle i of this store becomes particle perm[i] of src, for every
+	 * column, attribute, the id and the position buffer. Runs in parallel.
+	 *
+	 * @param src The store to read from, of the same precision. Must not be this store.
+	 * @param perm A permutation of [0, src.size).
+	 */
+	public void permuteFrom(ParticleStore src, int[] perm) {
+		permuteFrom(src, perm, src.size);
+	}
+
+	/**
+	 * Overwrites this store with selected particles of another store, in a
+	 * given order: particle i of this store becomes particle perm[i] of src,
+	 * for i below count, for every column, attribute, the id and the position
+	 * buffer. Runs in parallel.
+	 *
+	 * @param src The store to read from, of the same precision. Must not be this store.
+	 * @param perm Distinct slot indices of src.
+	 * @param count The number of particles to take; the new size.
+	 */
+	public void permuteFrom(final ParticleStore src, final int[] perm, int count) {
+		if (src == this)
+			throw new IllegalArgumentException("Cannot permute a store into itself");
+		if (count > capacity || perm.length < count)
+			throw new IllegalArgumentException("Cannot take " + count + " particles into capacity " + capacity);
+		if (src.precision != precision)
+			throw new IllegalArgumentException("Stores differ in precision");
+		size = count;
+		final Attribute[][] pairs = attributePairs(src);
+		IntStream.range(0, blockCount()).parallel().forEach(b -> {
+			int from = b << BLOCK_SHIFT, to = Math.min(size, from + BLOCK_SIZE);
+			for (int c = 0; c < COLUMNS; c++)
+				gather(src.column(c), column(c), perm, from, to);
+			for (Attribute[] p : pairs)
+				p[1].gather(p[0], perm, from, to);
+			for (int i = from; i < to; i++)
+				id[i] = src.id[perm[i]];
+			syncPosBuffer(from, to);
+		});
+		markChanged(PX, 0, size);
+		markChanged(VX, 0, size);
+		nextId = Math.max(nextId, src.nextId);
+		markReordered();
+	}
+
+	private static void gather(Object src, Object dst, int[] perm, int from, int to) {
+		if (src instanceof double[]) {
+			double[] a = (double[]) src, b = (double[]) dst;
+			for (int i = from; i < to; i++)
+				b[i] = a[perm[i]];
+		} else {
+			float[] a = (float[]) src, b = (float[]) dst;
+			for (int i = from; i < to; i++)
+				b[i] = a[perm[i]];
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		// Versions from another process mean nothing here.
+		markChanged(PX, 0, size);
+		markChanged(VX, 0, size);
+		order = VERSIONS.incrementAndGet();
+	}
+
+	/**
+	 * @return The approximate memory held by this store, in bytes.
+	 */
+	public long sizeInBytes() {
+		long bytes = (hasDoublePositions() ? 3L*8 : 3L*4) * capacity
+				+ (hasDoubleVelocities() ? 4L*8 : 4L*4) * capacity;
+		if (posBuffer != null)
+			bytes += 3L*4*capacity;
+		for (Attribute a : getAttributes())
+			bytes += a.sizeInBytes();
+		return bytes + 4L*capacity + 4L*free.length + 8L*(posVersions.length + velVersions.length);
+	}
+
+	/**
+	 * Turns on the off-heap position mirror, allocating and filling it if needed.
+	 * Once enabled, setPos and copyFrom keep it up to date; code that writes the
+	 * position arrays directly must also write the buffer or call
+	 * {@link #syncPosBuffer(int, int)}.
+	 *
+	 * @return The position buffer.
+	 */
+	public FloatBuffer enablePosBuffer() {
+		if (posBuffer == null) {
+			posBuffer = allocateFloats(3*capacity);
+			syncPosBuffer(0, size);
+		}
+		return posBuffer;
+	}
+
+	/**
+	 * Gets the off-heap position mirror. Its position is 0 and its limit is
+	 * 3*capacity; only the first 3*size floats are kept up to date.
+	 *
+	 * @return The position buffer, or null if it has not been enabled.
+	 */
+	public FloatBuffer getPosBuffer() {
+		return posBuffer;
+	}
+
+	/**
+	 * Copies positions of particles in [from, to) into the off-heap mirror.
+	 *
+	 * @param from The first particle index, inclusive.
+	 * @param to The last particle index, exclusive.
+	 */
+	public void syncPosBuffer(int from, int to) {
+		FloatBuffer fb = posBuffer;
+		if (fb == null)
+			return;
+		if (px != null) {
+			for (int i = from; i < to; i++) {
+				fb.put(3*i  , (float) px[i]);
+				fb.put(3*i+1, (float) py[i]);
+				fb.put(3*i+2, (float) pz[i]);
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				fb.put(3*i  , pxf[i]);
+				fb.put(3*i+1, pyf[i]);
+				fb.put(3*i+2, pzf[i]);
+			}
+		}
+	}
+
+	private static FloatBuffer allocateFloats(int n) {
+		return ByteBuffer.allocateDirect(4*n).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	public void getPos(int i, Tuple3d out) {
+		out.set(get(PX, i), get(PY, i), get(PZ, i));
+	}
+
+	public void setPos(int i, double x, double y, double z) {
+		set(PX, i, x);
+		set(PY, i, y);
+		set(PZ, i, z);
+		if (posBuffer != null) {
+			posBuffer.put(3*i  , (float) x);
+			posBuffer.put(3*i+1, (float) y);
+			posBuffer.put(3*i+2, (float) z);
+		}
+	}
+
+	public void getVel(int i, Tuple3d out) {
+		out.set(get(VX, i), get(VY, i), get(VZ, i));
+	}
+
+	public void setVel(int i, double x, double y, double z) {
+		set(VX, i, x);
+		set(VY, i, y);
+		set(VZ, i, z);
+	}
+
+	public double getMass(int i) {
+		return get(MASS, i);
+	}
+
+	public void setMass(int i, double m) {
+		set(MASS, i, m);
+	}
+
+	public void getMomentum(int i, Tuple3d out) {
+		double m = get(MASS, i);
+		out.set(m*get(VX, i), m*get(VY, i), m*get(VZ, i));
+	}
+
+	/**
+	 * Copies the state of particle i into a Particle object.
+	 *
+	 * @param i The particle index.
+	 * @param out The Particle to fill in.
+	 * @return out
+	 */
+	public Particle get(int i, Particle out) {
+		getPos(i, out.pos);
+		getVel(i, out.vel);
+		out.mass = get(MASS, i);
+		getMomentum(i, out.momentum);
+		return out;
+	}
+
+	/**
+	 * Stores the state of a Particle object at index i.
+	 *
+	 * @param i The particle index.
+	 * @param p The Particle to store.
+	 */
+	public void set(int i, Particle p) {
+		setPos(i, p.pos.x, p.pos.y, p.pos.z);
+		setVel(i, p.vel.x, p.vel.y, p.vel.z);
+		set(MASS, i, p.mass);
+	}
+}
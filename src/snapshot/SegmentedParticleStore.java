@@ -0,0 +1,212 @@
+package snapshot;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import javax_.vecmath.Tuple3d;
+
+/**
+ * Particle storage indexed by long, for scenes too large for one
+ * {@link ParticleStore}, whose int-indexed arrays stop at 2^31 elements.
+ *
+ * The particles are split into segments of a fixed power-of-two size, each
+ * held in its own ParticleStore, so everything that works on a store (copies,
+ * reorders, exports, statistics, attributes) works on a segment. Particle i
+ * lives in segment i >> segmentShift at offset i & (segmentSize - 1).
+ * Each segment numbers its particles from 0; {@link #getId(long)} offsets
+ * those ids by the segment's first index, so ids are unique over the scene.
+ *
+ * Work over the whole scene is split by segment with {@link #segments()},
+ * which streams segments and can be made parallel, or by particle with
+ * {@link #indices()}. Per-particle access through {@link #get(int, long)}
+ * and {@link #set(int, long, double)} is convenient but slower than working
+ * on segments.
+ */
+public class SegmentedParticleStore implements Iterable<ParticleStore>, java.io.Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/** The default segment size, 4M particles: large enough to stream well, small enough to balance across threads. */
+	public static final int DEFAULT_SEGMENT_SHIFT = 22;
+
+	public final long size;
+	public final ParticleStore.Precision precision;
+	public final int segmentShift;
+	private final ParticleStore[] segments;
+
+	/**
+	 * Creates a store of zeroed particles with the default segment size.
+	 *
+	 * @param size The number of particles.
+	 * @param precision How to store particle state.
+	 */
+	public SegmentedParticleStore(long size, ParticleStore.Precision precision) {
+		this(size, precision, DEFAULT_SEGMENT_SHIFT);
+	}
+
+	/**
+	 * Creates a store of zeroed particles.
+	 *
+	 * @param size The number of particles.
+	 * @param precision How to store particle state.
+	 * @param segmentShift The base 2 logarithm of the number of particles per segment, at most 30.
+	 */
+	public SegmentedParticleStore(long size, ParticleStore.Precision precision, int segmentShift) {
+		if (size < 0)
+			throw new IllegalArgumentException("Size must not be negative");
+		if (segmentShift < 0 || segmentShift > 30)
+			throw new IllegalArgumentException("Segment shift must be in [0, 30]");
+		long count = (size + (1L << segmentShift) - 1) >> segmentShift;
+		if (count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many segments for " + size + " particles");
+		this.size = size;
+		this.precision = precision;
+		this.segmentShift = segmentShift;
+		segments = new ParticleStore[(int) count];
+		for (int k = 0; k < segments.length; k++)
+			segments[k] = new ParticleStore((int) Math.min(1L << segmentShift, size - start(k)), precision);
+	}
+
+	/**
+	 * @return The number of segments.
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * @param k The segment number.
+	 * @return The store holding segment k. Its size must not be changed, and
+	 *         particles must not be spawned in it, so its ids stay below the
+	 *         segment size.
+	 */
+	public ParticleStore getSegment(int k) {
+		return segments[k];
+	}
+
+	/**
+	 * @param k The segment number.
+	 * @return The index of the first particle of segment k.
+	 */
+	public long start(int k) {
+		return (long) k << segmentShift;
+	}
+
+	/**
+	 * @param i A particle index.
+	 * @return The number of the segment holding particle i.
+	 */
+	public int segmentOf(long i) {
+		return (int) (i >> segmentShift);
+	}
+
+	/**
+	 * @param i A particle index.
+	 * @return The index of particle i within its segment.
+	 */
+	public int offsetOf(long i) {
+		return (int) (i & ((1L << segmentShift) - 1));
+	}
+
+	/**
+	 * @return The segments in order. Call parallel() on the stream to process
+	 *         segments concurrently.
+	 */
+	public Stream<ParticleStore> segments() {
+		return Arrays.stream(segments);
+	}
+
+	/**
+	 * @return All particle indices in order. Call parallel() on the stream to
+	 *         split them across threads.
+	 */
+	public LongStream indices() {
+		return LongStream.range(0, size);
+	}
+
+	@Override
+	public Iterator<ParticleStore> iterator() {
+		return Arrays.asList(segments).iterator();
+	}
+
+	@Override
+	public Spliterator<ParticleStore> spliterator() {
+		return Arrays.spliterator(segments);
+	}
+
+	/**
+	 * @param i A particle index.
+	 * @return The scene-wide id of particle i, or -1 if its slot is dead.
+	 *         Particles start with ids equal to their indices.
+	 */
+	public long getId(long i) {
+		int k = segmentOf(i);
+		int id = segments[k].id[offsetOf(i)];
+		return id < 0 ? -1 : start(k) + id;
+	}
+
+	public boolean isAlive(long i) {
+		return segments[segmentOf(i)].isAlive(offsetOf(i));
+	}
+
+	public double get(int column, long i) {
+		return segments[segmentOf(i)].get(column, offsetOf(i));
+	}
+
+	public void set(int column, long i, double v) {
+		segments[segmentOf(i)].set(column, offsetOf(i), v);
+	}
+
+	public void getPos(long i, Tuple3d out) {
+		segments[segmentOf(i)].getPos(offsetOf(i), out);
+	}
+
+	public void setPos(long i, double x, double y, double z) {
+		segments[segmentOf(i)].setPos(offsetOf(i), x, y, z);
+	}
+
+	public void getVel(long i, Tuple3d out) {
+		segments[segmentOf(i)].getVel(offsetOf(i), out);
+	}
+
+	public void setVel(long i, double x, double y, double z) {
+		segments[segmentOf(i)].setVel(offsetOf(i), x, y, z);
+	}
+
+	public double getMass(long i) {
+		return get(ParticleStore.MASS, i);
+	}
+
+	public void setMass(long i, double m) {
+		set(ParticleStore.MASS, i, m);
+	}
+
+	/**
+	 * Gets statistics of the whole scene, merged from those cached by each segment.
+	 *
+	 * @return New statistics.
+	 */
+	public SnapshotStats getStats() {
+		segments().parallel().forEach(ParticleStore::getStats);
+		SnapshotStats stats = new SnapshotStats();
+		for (ParticleStore s : segments)
+			stats.merge(s.getStats());
+		return stats;
+	}
+
+	/**
+	 * @return The memory held by all segments, in bytes.
+	 */
+	public long sizeInBytes() {
+		long bytes = 0;
+		for (ParticleStore s : segments)
+			bytes += s.sizeInBytes();
+		return bytes;
+	}
+}
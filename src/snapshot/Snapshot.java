@@ -1,7 +1,5 @@
 package snapshot;
 
-import java.util.Arrays;
-
 public class Snapshot implements java.io.Serializable {
 
 	/**
@@ -10,41 +8,144 @@ public class Snapshot implements java.io.Serializable {
 	private static final long serialVersionUID = 1L;
 
 	/**
-	 * The simulation time in seconds associated with this Snapshot.
+	 * The simulation time in seconds associated with this Snapshot. Simulators
+	 * that reuse Snapshot buffers update it in place.
 	 */
-	public final double t;
+	public double t;
 	/**
-	 * The particles that are part of this Snapshot.
+	 * The state of the particles that are part of this Snapshot.
 	 */
-	public final Particle[] part;
+	public final ParticleStore store;
 	
 	/**
 	 * Creates a new Snapshot with a given number of Particles.
-	 * Particles are default-constructed.
+	 * Particle state is zeroed.
 	 * 
 	 * @param nParticles The number of Particles in the Snapshot.
 	 * @param t The simulation time in seconds associated with the created Snapshot.
 	 */
 	public Snapshot(int nParticles, double t) {
+		this(nParticles, t, ParticleStore.Precision.DOUBLE);
+	}
+	
+	/**
+	 * Creates a new Snapshot with a given number of Particles stored at a given precision.
+	 * Particle state is zeroed.
+	 * 
+	 * @param nParticles The number of Particles in the Snapshot.
+	 * @param t The simulation time in seconds associated with the created Snapshot.
+	 * @param precision How particle state is stored.
+	 */
+	public Snapshot(int nParticles, double t, ParticleStore.Precision precision) {
+		this(nParticles, t, precision, nParticles);
+	}
+	
+	/**
+	 * Creates a new Snapshot with room to spawn more Particles than it starts with.
+	 * Particle state is zeroed.
+	 * 
+	 * @param nParticles The number of Particles in the Snapshot.
+	 * @param t The simulation time in seconds associated with the created Snapshot.
+	 * @param precision How particle state is stored.
+	 * @param capacity The largest number of particle slots the Snapshot can use.
+	 */
+	public Snapshot(int nParticles, double t, ParticleStore.Precision precision, int capacity) {
 		this.t = t;
-		part = new Particle[nParticles];
-		for (int i=0; i<nParticles; i++) {
-			part[i] = new Particle();
-		}
+		store = new ParticleStore(nParticles, precision, capacity);
 	}
 	
 	/**
-	 * Creates a deep copy of another Snapshot.
+	 * Creates a deep copy of another Snapshot, with the same precision.
+	 * The particles are copied in parallel.
 	 * 
 	 * @param ss The Snapshot from which to make a deep copy.
 	 * @param t The simulation time in seconds associated with the created Snapshot.
 	 */
 	public Snapshot(Snapshot ss, double t) {
 		this.t = t;
-		part = Arrays.copyOf(ss.part, ss.part.length);
-		for (int i=0; i<part.length; i++) {
-			part[i] = part[i].clone();
-		}
+		store = new ParticleStore(ss.store);
+	}
+	
+	/**
+	 * Overwrites this Snapshot with a deep copy of another, reusing its
+	 * storage. The particles are copied in parallel.
+	 * 
+	 * @param ss The Snapshot to copy, whose size fits this Snapshot's capacity.
+	 * @return this
+	 */
+	public Snapshot copyFrom(Snapshot ss) {
+		store.copyFrom(ss.store);
+		t = ss.t;
+		return this;
+	}
+	
+	/**
+	 * @return The bounding box, mass, momentum and kinetic energy of the live
+	 *         particles, computed once per change (see ParticleStore.getStats).
+	 */
+	public SnapshotStats getStats() {
+		return store.getStats();
+	}
+	
+	/**
+	 * @return The number of particle slots in use, including dead ones (see
+	 *         ParticleStore.isAlive).
+	 */
+	public int size() {
+		return store.size;
+	}
+	
+	/**
+	 * Reads the state of a particle by index into a new Particle object.
+	 * Changes to the returned Particle do not affect this Snapshot.
+	 * 
+	 * @param i The particle index.
+	 * @return A Particle holding a copy of the particle state.
+	 */
+	public Particle getParticle(int i) {
+		return store.get(i, new Particle());
+	}
+	
+	/**
+	 * Reads the state of a particle by index into an existing Particle object.
+	 * 
+	 * @param i The particle index.
+	 * @param out The Particle to fill in.
+	 * @return out
+	 */
+	public Particle getParticle(int i, Particle out) {
+		return store.get(i, out);
+	}
+	
+	/**
+	 * Stores the state of a Particle object at a given index.
+	 * 
+	 * @param i The particle index.
+	 * @param p The Particle whose state is copied in.
+	 */
+	public void setParticle(int i, Particle p) {
+		store.set(i, p);
+	}
+	
+	/**
+	 * Gets a per-particle attribute channel, registering it if this Snapshot
+	 * does not have it yet. Attributes are allocated only once registered,
+	 * and are carried along when the Snapshot is copied or stepped.
+	 * 
+	 * @param name The attribute name, such as "temperature".
+	 * @param kind Whether the attribute is a scalar, vector or 3x3 matrix.
+	 * @return The attribute, whose columns can be read and written directly.
+	 */
+	public Attribute attribute(String name, Attribute.Kind kind) {
+		return store.attribute(name, kind);
+	}
+	
+	/**
+	 * @param name The attribute name.
+	 * @return The attribute, or null if it has not been registered.
+	 */
+	public Attribute getAttribute(String name) {
+		return store.getAttribute(name);
 	}
 	
 	/**
@@ -53,13 +154,20 @@ public class Snapshot implements java.io.Serializable {
 	 * @return
 	 */
 	public float[] getPosArray() {
-		float[] array = new float[3*part.length];
-		for (int i = 0; i < part.length; i++) {
-			array[3*i  ] = (float) part[i].pos.x; 
-			array[3*i+1] = (float) part[i].pos.y; 
-			array[3*i+2] = (float) part[i].pos.z; 
-		}
-		return array;
+		return getPosArray(new float[3*store.size]);
+	}
+	
+	/**
+	 * Writes the positions of all particles into an existing array. To copy only
+	 * particles that moved since the previous call, use a {@link SnapshotExporter}.
+	 * 
+	 * @param out The array to fill, at least 3*size() long.
+	 * @return out
+	 */
+	public float[] getPosArray(float[] out) {
+		for (int a = 0; a < 3; a++)
+			interleave(store.column(ParticleStore.PX + a), out, a, store.size);
+		return out;
 	}
 	
 	/**
@@ -68,13 +176,36 @@ public class Snapshot implements java.io.Serializable {
 	 * @return
 	 */
 	public float[] getVelArray() {
-		float[] array = new float[3*part.length];
-		for (int i = 0; i < part.length; i++) {
-			array[3*i  ] = (float) part[i].vel.x; 
-			array[3*i+1] = (float) part[i].vel.y; 
-			array[3*i+2] = (float) part[i].vel.z; 
+		return getVelArray(new float[3*store.size]);
+	}
+	
+	/**
+	 * Writes the velocities of all particles into an existing array. To copy only
+	 * particles whose velocity changed since the previous call, use a
+	 * {@link SnapshotExporter}.
+	 * 
+	 * @param out The array to fill, at least 3*size() long.
+	 * @return out
+	 */
+	public float[] getVelArray(float[] out) {
+		for (int a = 0; a < 3; a++)
+			interleave(store.column(ParticleStore.VX + a), out, a, store.size);
+		return out;
+	}
+
+	/**
+	 * Copies n values of a column into every third element of out, starting at offset.
+	 */
+	private static void interleave(Object column, float[] out, int offset, int n) {
+		if (column instanceof double[]) {
+			double[] c = (double[]) column;
+			for (int i = 0; i < n; i++)
+				out[3*i + offset] = (float) c[i];
+		} else {
+			float[] c = (float[]) column;
+			for (int i = 0; i < n; i++)
+				out[3*i + offset] = c[i];
 		}
-		return array;
 	}
 	
 
@@ -82,9 +213,37 @@ public class Snapshot implements java.io.Serializable {
 		Snapshot s1 = new Snapshot(20, 0.0);
 		Snapshot s2 = new Snapshot(s1, 1.0);
 		
-		s1.part[0].pos.x = 1.0;
+		s1.store.set(ParticleStore.PX, 0, 1.0);
 		
-		System.out.println("s1[0].pos: " + s1.part[0].pos);
-		System.out.println("s2[0].pos: " + s2.part[0].pos);
+		System.out.println("s1[0].pos: " + s1.getParticle(0).pos);
+		System.out.println("s2[0].pos: " + s2.getParticle(0).pos);
+
+		// Exported arrays hold every component in xyz order, whatever the precision.
+		Snapshot mixed = new Snapshot(3, 0.0, ParticleStore.Precision.MIXED);
+		mixed.store.setPos(2, 1, 2, 3);
+		mixed.store.setVel(2, 4, 5, 6);
+		float[] pos = mixed.getPosArray(), vel = mixed.getVelArray();
+		check(pos[6] == 1 && pos[7] == 2 && pos[8] == 3 && vel[6] == 4 && vel[7] == 5 && vel[8] == 6, "position and velocity export");
+
+		// Copying between Snapshots of different sizes shrinks or grows the target.
+		Snapshot big = new Snapshot(100, 0.0), small = new Snapshot(10, 0.0);
+		small.store.set(ParticleStore.PX, 9, 2.0);
+		big.copyFrom(small);
+		System.out.println("big after copying small: " + big.size() + " particles, [9].pos " + big.getParticle(9).pos);
+		check(big.size() == 10 && big.getParticle(9).pos.x == 2.0, "copy into a larger Snapshot");
+		Snapshot roomy = new Snapshot(10, 0.0, ParticleStore.Precision.FLOAT, 100);
+		roomy.copyFrom(new Snapshot(100, 0.0));
+		check(roomy.size() == 100, "copy into a Snapshot with spare capacity");
+		try {
+			small.copyFrom(new Snapshot(100, 0.0));
+			check(false, "copy into a Snapshot without room");
+		} catch (IllegalArgumentException e) {
+			System.out.println("copy into a Snapshot without room: " + e.getMessage());
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok)
+			throw new IllegalStateException("Failed: " + what);
 	}
 }
@@ -0,0 +1,252 @@
+package snapshot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed pool of preallocated Snapshots of equal capacity, used to keep
+ * history (for scrubbing, recording or analysis) without allocating a new
+ * Snapshot per frame.
+ *
+ * Slots are handed out as reference-counted {@link Handle}s. A slot goes back
+ * to the pool when the last holder releases it, so several consumers can share
+ * one frame without copying it. Each lease gets its own Handle, so a holder
+ * that releases too often only breaks its own lease, never the next one of
+ * the same slot. The arena is safe to use from several threads.
+ */
+public class SnapshotArena {
+
+	/**
+	 * A reference-counted lease on one slot of the arena. Once its last
+	 * reference is released the handle is dead: retain() and release() throw.
+	 */
+	public final class Handle {
+		private final Snapshot snapshot;
+		private final AtomicInteger refs = new AtomicInteger(1);
+
+		private Handle(Snapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		/**
+		 * @return The Snapshot held by this slot. It must not be used after the
+		 *         last reference is released.
+		 */
+		public Snapshot snapshot() {
+			return snapshot;
+		}
+
+		/**
+		 * Adds a reference so another consumer can hold on to this frame.
+		 *
+		 * @return this
+		 */
+		public Handle retain() {
+			int r;
+			do {
+				r = refs.get();
+				if (r <= 0)
+					throw new IllegalStateException("Handle has already been released");
+			} while (!refs.compareAndSet(r, r+1));
+			return this;
+		}
+
+		/**
+		 * Drops a reference. The slot is recycled when no references remain.
+		 */
+		public void release() {
+			int r = refs.decrementAndGet();
+			if (r == 0) {
+				recycled.incrementAndGet();
+				inUse.decrementAndGet();
+				free.offer(snapshot);
+			} else if (r < 0) {
+				refs.incrementAndGet();
+				throw new IllegalStateException("Handle has already been released");
+			}
+		}
+
+		/**
+		 * @return The number of outstanding references.
+		 */
+		public int refCount() {
+			return refs.get();
+		}
+	}
+
+	private final int nParticles;
+	private final int capacity;
+	/** The Snapshots of the slots not leased out. */
+	private final ArrayBlockingQueue<Snapshot> free;
+
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong recycled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final long createdNanos = System.nanoTime();
+
+	/**
+	 * Creates an arena and allocates all of its slots up front.
+	 *
+	 * @param capacity The number of Snapshots held by the arena.
+	 * @param nParticles The number of particle slots allocated for each Snapshot.
+	 */
+	public SnapshotArena(int capacity, int nParticles) {
+		this(capacity, nParticles, ParticleStore.Precision.DOUBLE);
+	}
+
+	/**
+	 * Creates an arena and allocates all of its slots up front.
+	 *
+	 * @param capacity The number of Snapshots held by the arena.
+	 * @param nParticles The number of particle slots allocated for each Snapshot.
+	 * @param precision How each Snapshot stores particle state.
+	 */
+	public SnapshotArena(int capacity, int nParticles, ParticleStore.Precision precision) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Arena capacity must be positive");
+		this.capacity = capacity;
+		this.nParticles = nParticles;
+		free = new ArrayBlockingQueue<Snapshot>(capacity);
+		for (int i = 0; i < capacity; i++)
+			free.add(new Snapshot(nParticles, 0, precision));
+	}
+
+	/**
+	 * Takes a free slot, waiting for one to be released if the arena is full.
+	 * The returned handle holds one reference. The contents of the Snapshot are
+	 * whatever the previous user left there.
+	 *
+	 * @return A handle to the slot.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public Handle acquire() throws InterruptedException {
+		return lease(free.take());
+	}
+
+	/**
+	 * Takes a free slot without waiting.
+	 *
+	 * @return A handle holding one reference, or null if every slot is in use.
+	 */
+	public Handle tryAcquire() {
+		Snapshot ss = free.poll();
+		if (ss == null) {
+			failed.incrementAndGet();
+			return null;
+		}
+		return lease(ss);
+	}
+
+	/**
+	 * Takes a free slot without waiting and copies a Snapshot into it.
+	 *
+	 * @param src The Snapshot to copy. Its size must not exceed the arena's particle count.
+	 * @return A handle holding one reference, or null if every slot is in use.
+	 */
+	public Handle tryAcquireCopyOf(Snapshot src) {
+		Handle h = tryAcquire();
+		if (h != null) {
+			try {
+				h.snapshot.copyFrom(src);
+			} catch (RuntimeException | Error e) {
+				h.release();
+				throw e;
+			}
+		}
+		return h;
+	}
+
+	private Handle lease(Snapshot ss) {
+		inUse.incrementAndGet();
+		acquired.incrementAndGet();
+		return new Handle(ss);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getParticleCount() {
+		return nParticles;
+	}
+
+	/**
+	 * @return The number of slots currently leased out.
+	 */
+	public int getInUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * @return The fraction of slots currently leased out, in [0, 1].
+	 */
+	public double getOccupancy() {
+		return inUse.get() / (double) capacity;
+	}
+
+	/**
+	 * @return The total number of successful acquisitions.
+	 */
+	public long getAcquireCount() {
+		return acquired.get();
+	}
+
+	/**
+	 * @return The total number of slots returned to the pool.
+	 */
+	public long getRecycleCount() {
+		return recycled.get();
+	}
+
+	/**
+	 * @return The number of tryAcquire calls that found the arena full.
+	 */
+	public long getFailedAcquireCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return The average number of slots recycled per second since the arena was created.
+	 */
+	public double getRecycleRate() {
+		double seconds = (System.nanoTime() - createdNanos) / 1e9;
+		return seconds > 0 ? recycled.get() / seconds : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SnapshotArena[%d/%d in use, %d acquired, %d recycled, %d failed]",
+				getInUse(), capacity, getAcquireCount(), getRecycleCount(), getFailedAcquireCount());
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		SnapshotArena arena = new SnapshotArena(2, 10);
+		Handle a = arena.acquire(), b = arena.tryAcquire();
+		check(arena.tryAcquire() == null, "a full arena refuses tryAcquire");
+		a.retain();
+		a.release();
+		check(arena.getInUse() == 2, "a retained slot stays leased");
+		Snapshot slot = a.snapshot();
+		a.release();
+		Handle c = arena.tryAcquire();
+		check(c != null && c.snapshot() == slot, "a released slot is leased again");
+		try {
+			a.release();
+			check(false, "a stale release is refused");
+		} catch (IllegalStateException e) {
+			System.out.println("Stale release: " + e.getMessage());
+		}
+		check(c.refCount() == 1, "a stale release leaves the new lease alone");
+		b.release();
+		c.release();
+		System.out.println(arena);
+		check(arena.getInUse() == 0 && arena.getRecycleCount() == 3, "every slot is returned");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok)
+			throw new IllegalStateException("Failed: " + what);
+	}
+}
@@ -0,0 +1,179 @@
+package snapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Compares two stores slot by slot and reports where they diverge, for
+ * tracking down why a run stopped reproducing (see {@link SnapshotFingerprint}).
+ *
+ * Values are compared with an absolute tolerance; a tolerance of 0 asks for
+ * identical bits, so NaNs with equal bits match. Ids must match exactly, and
+ * slots beyond the size of one store count as divergent. Particles are
+ * compared in parallel over chunks, and the earliest divergences by slot are
+ * reported, whatever the number of threads.
+ */
+public final class SnapshotDiff {
+
+	/**
+	 * One value that differs between the two stores.
+	 */
+	public static final class Divergence {
+		/** The slot index. */
+		public final int index;
+		/** The particle id in the first store, or -1 past its size. */
+		public final int id;
+		/**
+		 * The column: px, py, pz, vx, vy, vz, mass, id, an attribute name and
+		 * component, or size for a slot that only one store uses.
+		 */
+		public final String column;
+		/** The values in the first and second store; for size, 1 where the slot is in use and 0 otherwise. */
+		public final double a, b;
+
+		Divergence(int index, int id, String column, double a, double b) {
+			this.index = index;
+			this.id = id;
+			this.column = column;
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("particle %d (id %d) %s: %s != %s", index, id, column, a, b);
+		}
+	}
+
+	private static final String[] COLUMN_NAMES = {"px", "py", "pz", "vx", "vy", "vz", "mass"};
+	private static final int CHUNK = 1 << 16;
+
+	private final int divergentCount;
+	private final List<Divergence> reported;
+
+	private SnapshotDiff(int divergentCount, List<Divergence> reported) {
+		this.divergentCount = divergentCount;
+		this.reported = Collections.unmodifiableList(reported);
+	}
+
+	/**
+	 * Compares two stores. Attributes are compared when both stores have them.
+	 *
+	 * @param a The first store.
+	 * @param b The second store.
+	 * @param epsilon The largest tolerated absolute difference, or 0 for identical bits.
+	 * @param maxReported The most divergent values to report.
+	 * @return The result of the comparison.
+	 */
+	public static SnapshotDiff compare(final ParticleStore a, final ParticleStore b,
+			final double epsilon, final int maxReported) {
+		final List<Attribute[]> pairs = new ArrayList<Attribute[]>();
+		for (Attribute x : a.getAttributes()) {
+			Attribute y = b.getAttribute(x.name);
+			if (y != null && y.kind == x.kind)
+				pairs.add(new Attribute[] { x, y });
+		}
+		final int n = Math.max(a.size, b.size);
+		final int chunks = (n + CHUNK - 1) / CHUNK;
+		final int[] counts = new int[chunks];
+		// Each chunk keeps at most maxReported divergences, the earliest in it.
+		final List<List<Divergence>> found = new ArrayList<List<Divergence>>(Collections.nCopies(chunks, (List<Divergence>) null));
+		IntStream.range(0, chunks).parallel().forEach(k -> {
+			List<Divergence> out = new ArrayList<Divergence>();
+			int count = 0;
+			for (int i = k * CHUNK, end = Math.min(n, i + CHUNK); i < end; i++) {
+				boolean diverged = false;
+				int id = i < a.size ? a.id[i] : -1;
+				if (i >= a.size || i >= b.size) {
+					diverged = true;
+					if (out.size() < maxReported)
+						out.add(new Divergence(i, id, "size", i < a.size ? 1 : 0, i < b.size ? 1 : 0));
+				} else {
+					if (a.id[i] != b.id[i]) {
+						diverged = true;
+						if (out.size() < maxReported)
+							out.add(new Divergence(i, id, "id", a.id[i], b.id[i]));
+					}
+					for (int c = 0; c < ParticleStore.COLUMNS; c++) {
+						double x = a.get(c, i), y = b.get(c, i);
+						if (!equal(x, y, epsilon)) {
+							diverged = true;
+							if (out.size() < maxReported)
+								out.add(new Divergence(i, id, COLUMN_NAMES[c], x, y));
+						}
+					}
+					for (Attribute[] p : pairs) {
+						for (int c = 0; c < p[0].kind.components; c++) {
+							double x = p[0].get(c, i), y = p[1].get(c, i);
+							if (!equal(x, y, epsilon)) {
+								diverged = true;
+								if (out.size() < maxReported)
+									out.add(new Divergence(i, id, p[0].name + "[" + c + "]", x, y));
+							}
+						}
+					}
+				}
+				if (diverged)
+					count++;
+			}
+			counts[k] = count;
+			found.set(k, out);
+		});
+		int total = 0;
+		List<Divergence> reported = new ArrayList<Divergence>();
+		for (int k = 0; k < chunks; k++) {
+			total += counts[k];
+			for (Divergence d : found.get(k))
+				if (reported.size() < maxReported)
+					reported.add(d);
+		}
+		return new SnapshotDiff(total, reported);
+	}
+
+	/**
+	 * Compares the particles of two Snapshots; their times are not compared.
+	 *
+	 * @see #compare(ParticleStore, ParticleStore, double, int)
+	 */
+	public static SnapshotDiff compare(Snapshot a, Snapshot b, double epsilon, int maxReported) {
+		return compare(a.store, b.store, epsilon, maxReported);
+	}
+
+	private static boolean equal(double x, double y, double epsilon) {
+		if (epsilon == 0)
+			return Double.doubleToRawLongBits(x) == Double.doubleToRawLongBits(y);
+		return Math.abs(x - y) <= epsilon;
+	}
+
+	/**
+	 * @return Whether no particle diverged.
+	 */
+	public boolean isIdentical() {
+		return divergentCount == 0;
+	}
+
+	/**
+	 * @return The number of slots with at least one divergent value.
+	 */
+	public int getDivergentCount() {
+		return divergentCount;
+	}
+
+	/**
+	 * @return The earliest divergent values by slot, at most maxReported of them.
+	 */
+	public List<Divergence> getReported() {
+		return reported;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(divergentCount).append(" divergent particles");
+		for (Divergence d : reported)
+			sb.append("\n  ").append(d);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,155 @@
+package snapshot;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps a caller-owned copy of the positions or velocities of a Snapshot up to
+ * date by re-exporting only the blocks of particles that changed since the
+ * last export.
+ *
+ * The exporter remembers the block versions (see
+ * {@link ParticleStore#getVersion(int, int)}) it last copied. Because versions
+ * travel with the data when stores are copied, it can follow a simulator that
+ * alternates between buffers, or skip frames, and still copy only what differs
+ * from the caller's copy. After each export the changed particles are listed
+ * as ranges, merged where adjacent, so they can be uploaded with partial
+ * writes such as glBufferSubData. Only slots below the store's size are
+ * exported; a store that grows into fresh blocks has them marked changed.
+ *
+ * Each exporter serves one destination; call {@link #invalidate()} when the
+ * destination is replaced or its contents are lost.
+ */
+public class SnapshotExporter {
+	private final int column;
+	private long[] exported = new long[0];
+	private int capacity = -1;
+	private int[] ranges = new int[16];
+	private int rangeCount;
+	private int particles;
+
+	/**
+	 * @param column ParticleStore.PX to export positions or ParticleStore.VX to export velocities.
+	 */
+	public SnapshotExporter(int column) {
+		if (column != ParticleStore.PX && column != ParticleStore.VX)
+			throw new IllegalArgumentException("Only positions (PX) and velocities (VX) can be exported");
+		this.column = column;
+	}
+
+	/**
+	 * Forgets what was exported, so the next export copies every particle.
+	 */
+	public void invalidate() {
+		capacity = -1;
+	}
+
+	/**
+	 * Finds the particles that changed since the last export and records them as
+	 * exported without copying anything, for destinations the caller fills
+	 * itself (for instance straight from ParticleStore.getPosBuffer()).
+	 *
+	 * @param s The store to export.
+	 * @return The number of changed particles.
+	 */
+	public int update(ParticleStore s) {
+		int blocks = s.blockCount();
+		if (capacity != s.capacity) {
+			int allBlocks = (s.capacity + ParticleStore.BLOCK_SIZE - 1) >> ParticleStore.BLOCK_SHIFT;
+			if (exported.length < allBlocks)
+				exported = new long[allBlocks];
+			Arrays.fill(exported, 0, allBlocks, -1);
+			capacity = s.capacity;
+		}
+		rangeCount = 0;
+		particles = 0;
+		for (int b = 0; b < blocks; b++) {
+			long v = s.stampVersion(column, b);
+			if (v == exported[b])
+				continue;
+			exported[b] = v;
+			int from = b << ParticleStore.BLOCK_SHIFT;
+			int to = Math.min(s.size, from + ParticleStore.BLOCK_SIZE);
+			particles += to - from;
+			if (rangeCount > 0 && ranges[2*rangeCount-1] == from) {
+				ranges[2*rangeCount-1] = to;
+			} else {
+				if (2*rangeCount == ranges.length)
+					ranges = Arrays.copyOf(ranges, 2*ranges.length);
+				ranges[2*rangeCount] = from;
+				ranges[2*rangeCount+1] = to;
+				rangeCount++;
+			}
+		}
+		return particles;
+	}
+
+	/**
+	 * Copies changed particles into an array of interleaved xyz floats.
+	 *
+	 * @param s The store to export.
+	 * @param out The array to write into, at least 3*s.capacity long.
+	 * @return The number of changed particles.
+	 */
+	public int export(ParticleStore s, float[] out) {
+		int n = update(s);
+		for (int r = 0; r < rangeCount; r++) {
+			for (int i = getRangeStart(r); i < getRangeEnd(r); i++) {
+				out[3*i  ] = (float) s.get(column  , i);
+				out[3*i+1] = (float) s.get(column+1, i);
+				out[3*i+2] = (float) s.get(column+2, i);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Copies changed particles into a buffer of interleaved xyz floats, using
+	 * absolute puts from index 0.
+	 *
+	 * @param s The store to export.
+	 * @param out The buffer to write into, with capacity for 3*s.capacity floats.
+	 * @return The number of changed particles.
+	 */
+	public int export(ParticleStore s, FloatBuffer out) {
+		int n = update(s);
+		for (int r = 0; r < rangeCount; r++) {
+			for (int i = getRangeStart(r); i < getRangeEnd(r); i++) {
+				out.put(3*i  , (float) s.get(column  , i));
+				out.put(3*i+1, (float) s.get(column+1, i));
+				out.put(3*i+2, (float) s.get(column+2, i));
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return The number of particle ranges changed by the last export.
+	 */
+	public int getRangeCount() {
+		return rangeCount;
+	}
+
+	/**
+	 * @param r A range number, below getRangeCount().
+	 * @return The first particle of the range, inclusive.
+	 */
+	public int getRangeStart(int r) {
+		return ranges[2*r];
+	}
+
+	/**
+	 * @param r A range number, below getRangeCount().
+	 * @return The last particle of the range, exclusive.
+	 */
+	public int getRangeEnd(int r) {
+		return ranges[2*r+1];
+	}
+
+	/**
+	 * @return The number of particles changed by the last export.
+	 */
+	public int getChangedCount() {
+		return particles;
+	}
+}
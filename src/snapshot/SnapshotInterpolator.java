@@ -0,0 +1,251 @@
+package snapshot;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import javax_.vecmath.Tuple3d;
+
+/**
+ * Produces particle positions at times between two stored Snapshots.
+ *
+ * Setting the pair of Snapshots and the query time only computes blending
+ * weights; positions are evaluated when asked for, and only for the particles
+ * asked for, so a renderer can draw smooth motion from sparsely recorded
+ * frames without storing or fully rebuilding intermediate states.
+ *
+ * The two Snapshots may hold their particles in different orders, for
+ * instance on either side of a Morton reorder, or differ in size because
+ * particles were spawned, killed or compacted away in between; particles are
+ * then matched by id and results follow the slots of the earlier Snapshot.
+ * Particles missing from the later Snapshot, and dead slots, hold their
+ * earlier position.
+ */
+public class SnapshotInterpolator {
+
+	public enum Mode {
+		/** Straight-line motion between the two stored positions. */
+		LINEAR,
+		/** Cubic Hermite curve that also matches the stored velocities at both ends. */
+		HERMITE,
+	}
+
+	private final Mode mode;
+	private ParticleStore a, b;
+	private double t;
+	// Weights for pos(a), vel(a), pos(b), vel(b).
+	private double wa, wva, wb, wvb;
+	/** Index in b of each particle of a or -1 if it has none, or null if both share one layout. */
+	private int[] bIndex;
+	private long aOrder, bOrder;
+	/** Open-addressed table from the ids of b to their indices. */
+	private int[] tableIds = new int[0], tableIndices = new int[0];
+
+	public SnapshotInterpolator(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Selects the bracketing Snapshots and the query time. Times outside
+	 * [s0.t, s1.t] are clamped to the nearer end.
+	 *
+	 * @param s0 The earlier Snapshot.
+	 * @param s1 The later Snapshot.
+	 * @param t The query time in seconds.
+	 */
+	public void set(Snapshot s0, Snapshot s1, double t) {
+		boolean samePair = a == s0.store && b == s1.store
+				&& aOrder == a.getOrder() && bOrder == b.getOrder();
+		a = s0.store;
+		b = s1.store;
+		aOrder = a.getOrder();
+		bOrder = b.getOrder();
+		if (!samePair)
+			matchIds();
+		this.t = t;
+		double dt = s1.t - s0.t;
+		double s = dt > 0 ? (t - s0.t) / dt : 0;
+		s = Math.max(0, Math.min(1, s));
+		if (mode == Mode.LINEAR) {
+			wa = 1 - s;
+			wb = s;
+			wva = wvb = 0;
+		} else {
+			double s2 = s*s, s3 = s2*s;
+			wa = 2*s3 - 3*s2 + 1;
+			wb = -2*s3 + 3*s2;
+			// Hermite tangents are velocities scaled to the interval length.
+			wva = (s3 - 2*s2 + s) * dt;
+			wvb = (s3 - s2) * dt;
+		}
+	}
+
+	/**
+	 * @return The query time last passed to set().
+	 */
+	public double getTime() {
+		return t;
+	}
+
+	/**
+	 * @return The number of particle slots of the earlier Snapshot.
+	 */
+	public int size() {
+		return a.size;
+	}
+
+	public void getPos(int i, Tuple3d out) {
+		out.set(x(i), y(i), z(i));
+	}
+
+	public double x(int i) {
+		return component(ParticleStore.PX, i);
+	}
+
+	public double y(int i) {
+		return component(ParticleStore.PY, i);
+	}
+
+	public double z(int i) {
+		return component(ParticleStore.PZ, i);
+	}
+
+	private double component(int column, int i) {
+		int j = bIndex == null ? i : bIndex[i];
+		if (j < 0)
+			return a.get(column, i);
+		return wa*a.get(column, i) + wb*b.get(column, j)
+				+ wva*a.get(column + 3, i) + wvb*b.get(column + 3, j);
+	}
+
+	/**
+	 * Writes positions of particles in [from, to) as interleaved xyz floats.
+	 *
+	 * @param from The first particle index, inclusive.
+	 * @param to The last particle index, exclusive.
+	 * @param out The array to write into.
+	 * @param offset The index in out of the first particle's x.
+	 */
+	public void getPositions(int from, int to, float[] out, int offset) {
+		for (int i = from; i < to; i++, offset += 3) {
+			out[offset  ] = (float) x(i);
+			out[offset+1] = (float) y(i);
+			out[offset+2] = (float) z(i);
+		}
+	}
+
+	/**
+	 * Writes positions of selected particles as interleaved xyz floats.
+	 *
+	 * @param indices The particle indices.
+	 * @param count How many entries of indices to use.
+	 * @param out The array to write into, at least 3*count long.
+	 */
+	public void getPositions(int[] indices, int count, float[] out) {
+		for (int j = 0; j < count; j++) {
+			int i = indices[j];
+			out[3*j  ] = (float) x(i);
+			out[3*j+1] = (float) y(i);
+			out[3*j+2] = (float) z(i);
+		}
+	}
+
+	/**
+	 * Writes positions of all particles as interleaved xyz floats into a buffer,
+	 * such as one obtained from ParticleStore.getPosBuffer().
+	 *
+	 * @param out The buffer to write into, using absolute puts from index 0.
+	 */
+	public void getPositions(FloatBuffer out) {
+		for (int i = 0; i < a.size; i++) {
+			out.put(3*i  , (float) x(i));
+			out.put(3*i+1, (float) y(i));
+			out.put(3*i+2, (float) z(i));
+		}
+	}
+
+	/**
+	 * Works out where each particle of a is found in b.
+	 */
+	private void matchIds() {
+		if (aOrder == bOrder || sameIds()) {
+			bIndex = null;
+			return;
+		}
+		// Ids grow without bound as particles are spawned, so they are hashed
+		// rather than used to index an array.
+		int tableSize = Integer.highestOneBit(Math.max(1, 2*b.size)) << 1;
+		if (tableIds.length < tableSize) {
+			tableIds = new int[tableSize];
+			tableIndices = new int[tableSize];
+		}
+		int mask = tableSize - 1;
+		Arrays.fill(tableIds, 0, tableSize, -1);
+		for (int i = 0; i < b.size; i++) {
+			int id = b.id[i];
+			if (id < 0)
+				continue;
+			int h = hash(id) & mask;
+			while (tableIds[h] >= 0)
+				h = (h + 1) & mask;
+			tableIds[h] = id;
+			tableIndices[h] = i;
+		}
+		if (bIndex == null || bIndex.length < a.size)
+			bIndex = new int[a.size];
+		for (int i = 0; i < a.size; i++) {
+			int id = a.id[i], j = -1;
+			if (id >= 0) {
+				for (int h = hash(id) & mask; tableIds[h] >= 0; h = (h + 1) & mask) {
+					if (tableIds[h] == id) {
+						j = tableIndices[h];
+						break;
+					}
+				}
+			}
+			bIndex[i] = j;
+		}
+	}
+
+	private boolean sameIds() {
+		if (a.size != b.size)
+			return false;
+		for (int i = 0; i < a.size; i++)
+			if (a.id[i] != b.id[i])
+				return false;
+		return true;
+	}
+
+	private static int hash(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ h >>> 16;
+	}
+
+	/**
+	 * Writes interpolated positions and the query time into a reusable
+	 * Snapshot, for code that consumes whole Snapshots. Other state in out is
+	 * left untouched. Particle ids are copied from the earlier Snapshot.
+	 *
+	 * @param out A Snapshot with room for the earlier Snapshot's particles.
+	 * @return out
+	 */
+	public Snapshot interpolate(Snapshot out) {
+		ParticleStore s = out.store;
+		if (s.capacity < a.size)
+			throw new IllegalArgumentException("Snapshot has room for " + s.capacity + " particles, not " + a.size);
+		s.copyOrder(a);
+		FloatBuffer fb = s.getPosBuffer();
+		for (int i = 0; i < s.size; i++) {
+			double x = x(i), y = y(i), z = z(i);
+			s.set(ParticleStore.PX, i, x);
+			s.set(ParticleStore.PY, i, y);
+			s.set(ParticleStore.PZ, i, z);
+			if (fb != null) {
+				fb.put(3*i  , (float) x);
+				fb.put(3*i+1, (float) y);
+				fb.put(3*i+2, (float) z);
+			}
+		}
+		out.t = t;
+		return out;
+	}
+}
@@ -0,0 +1,170 @@
+package snapshot;
+
+import java.util.stream.IntStream;
+
+import javax_.vecmath.Tuple3d;
+
+/**
+ * Whole-scene quantities of a store's live particles: the bounding box of
+ * their positions, total mass, total momentum and kinetic energy.
+ *
+ * Statistics are built by accumulating ranges of particles and merging the
+ * partial results, so they can be computed by a parallel reduction
+ * ({@link #of(ParticleStore)}) or collected chunk by chunk while another pass,
+ * such as integration, has the particles in cache. A store caches the
+ * statistics of its current contents (see {@link ParticleStore#getStats()});
+ * statistics obtained from a store must not be modified.
+ */
+public class SnapshotStats {
+	/** Particles per task of a parallel reduction; fixed so sums do not depend on the thread count. */
+	private static final int CHUNK = 1 << 16;
+
+	private final double[] min = new double[3], max = new double[3];
+	private final double[] momentum = new double[3];
+	private double mass, kineticEnergy;
+	private int count;
+
+	/**
+	 * Creates empty statistics, covering no particles.
+	 */
+	public SnapshotStats() {
+		reset();
+	}
+
+	/**
+	 * Computes the statistics of a store's live particles by a parallel reduction.
+	 *
+	 * @param s The store.
+	 * @return New statistics.
+	 */
+	public static SnapshotStats of(final ParticleStore s) {
+		final int chunks = (s.size + CHUNK - 1) / CHUNK;
+		final SnapshotStats[] partial = new SnapshotStats[chunks];
+		IntStream.range(0, chunks).parallel().forEach(k -> {
+			partial[k] = new SnapshotStats();
+			partial[k].accumulate(s, k * CHUNK, Math.min(s.size, (k+1) * CHUNK));
+		});
+		SnapshotStats stats = new SnapshotStats();
+		for (SnapshotStats p : partial)
+			stats.merge(p);
+		return stats;
+	}
+
+	/**
+	 * Forgets all particles.
+	 */
+	public void reset() {
+		for (int a = 0; a < 3; a++) {
+			min[a] = Double.POSITIVE_INFINITY;
+			max[a] = Double.NEGATIVE_INFINITY;
+			momentum[a] = 0;
+		}
+		mass = kineticEnergy = 0;
+		count = 0;
+	}
+
+	/**
+	 * Adds the live particles in [from, to) of a store.
+	 *
+	 * @param s The store.
+	 * @param from The first particle index, inclusive.
+	 * @param to The last particle index, exclusive.
+	 */
+	public void accumulate(ParticleStore s, int from, int to) {
+		Object m = s.column(ParticleStore.MASS);
+		double[] md = m instanceof double[] ? (double[]) m : null;
+		float[] mf = m instanceof float[] ? (float[]) m : null;
+		int[] id = s.id;
+		for (int a = 0; a < 3; a++) {
+			Object p = s.column(ParticleStore.PX + a), v = s.column(ParticleStore.VX + a);
+			double[] pd = p instanceof double[] ? (double[]) p : null, vd = v instanceof double[] ? (double[]) v : null;
+			float[] pf = p instanceof float[] ? (float[]) p : null, vf = v instanceof float[] ? (float[]) v : null;
+			double lo = min[a], hi = max[a], mv = 0, e = 0;
+			for (int i = from; i < to; i++) {
+				if (id[i] < 0)
+					continue;
+				double x = pd != null ? pd[i] : pf[i];
+				double vel = vd != null ? vd[i] : vf[i];
+				double mi = md != null ? md[i] : mf[i];
+				if (x < lo) lo = x;
+				if (x > hi) hi = x;
+				mv += mi*vel;
+				e += mi*vel*vel;
+			}
+			min[a] = lo;
+			max[a] = hi;
+			momentum[a] += mv;
+			kineticEnergy += 0.5*e;
+		}
+		for (int i = from; i < to; i++) {
+			if (id[i] >= 0) {
+				mass += md != null ? md[i] : mf[i];
+				count++;
+			}
+		}
+	}
+
+	/**
+	 * Adds the particles covered by other statistics.
+	 *
+	 * @param other Statistics of particles not yet covered by these.
+	 */
+	public void merge(SnapshotStats other) {
+		for (int a = 0; a < 3; a++) {
+			min[a] = Math.min(min[a], other.min[a]);
+			max[a] = Math.max(max[a], other.max[a]);
+			momentum[a] += other.momentum[a];
+		}
+		mass += other.mass;
+		kineticEnergy += other.kineticEnergy;
+		count += other.count;
+	}
+
+	/**
+	 * @return The number of live particles covered.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param out Receives the lowest x, y and z of any particle; +infinity if there are none.
+	 */
+	public void getMin(Tuple3d out) {
+		out.set(min[0], min[1], min[2]);
+	}
+
+	/**
+	 * @param out Receives the highest x, y and z of any particle; -infinity if there are none.
+	 */
+	public void getMax(Tuple3d out) {
+		out.set(max[0], max[1], max[2]);
+	}
+
+	public double getMin(int axis) {
+		return min[axis];
+	}
+
+	public double getMax(int axis) {
+		return max[axis];
+	}
+
+	public double getTotalMass() {
+		return mass;
+	}
+
+	public void getMomentum(Tuple3d out) {
+		out.set(momentum[0], momentum[1], momentum[2]);
+	}
+
+	public double getKineticEnergy() {
+		return kineticEnergy;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SnapshotStats[%d particles in (%g, %g, %g)-(%g, %g, %g), mass %g, momentum (%g, %g, %g), KE %g]",
+				count, min[0], min[1], min[2], max[0], max[1], max[2], mass,
+				momentum[0], momentum[1], momentum[2], kineticEnergy);
+	}
+}
@@ -0,0 +1,297 @@
+package snapshot;
+
+import java.util.Arrays;
+
+import javax_.vecmath.Point3d;
+import javax_.vecmath.Tuple3d;
+
+/**
+ * A counterpart of {@link Grid} that only stores the parts of its domain
+ * that particles reach, for scenes where particles fill a thin sheet or a
+ * splash of a much larger box.
+ *
+ * Nodes are grouped into blocks of 4x4x4. A page table, with one reference
+ * per block coordinate, maps each block to its storage, and storage is only
+ * allocated when a particle first touches one of the block's nodes. Blocks
+ * touched since the last clear() are kept in an active list for iteration.
+ * clear() zeroes the active blocks and keeps their storage for reuse, so a
+ * simulation whose particles move a little each step allocates almost
+ * nothing after the first. Nodes in unallocated blocks read as zero.
+ *
+ * Within a block the mass and momentum of each node are stored together,
+ * as in the interleaved layout of Grid, with z varying fastest.
+ */
+public class SparseGrid {
+	/** Nodes along each edge of a block, as a shift: blocks are 4x4x4. */
+	public static final int BLOCK_SHIFT = 2;
+	public static final int BLOCK = 1 << BLOCK_SHIFT;
+	/** Nodes per block. */
+	public static final int BLOCK_NODES = BLOCK * BLOCK * BLOCK;
+	private static final int MASK = BLOCK - 1;
+	private static final int FIELDS = Grid.FIELDS;
+	/** Particles read per pass over the store's columns. */
+	private static final int CHUNK = 1024;
+
+	Point3d origin;
+	int xDivs;
+	int yDivs;
+	int zDivs;
+	double h;
+
+	/** Blocks along each axis. */
+	final int bx, by, bz;
+	/** The storage of each block, by block number; null if not allocated. */
+	private final double[][] pages;
+	/** The block numbers of the allocated blocks, in the order allocated. */
+	private int[] active = new int[16];
+	private int activeCount;
+	/** Storage returned by clear(), ready to be handed to new blocks. */
+	private double[][] free = new double[16][];
+	private int freeCount;
+
+	public SparseGrid(Point3d origin, double h, int xDivs, int yDivs, int zDivs) {
+		this.origin = origin;
+		this.h = h;
+		this.xDivs = xDivs;
+		this.yDivs = yDivs;
+		this.zDivs = zDivs;
+		bx = (xDivs + BLOCK) >> BLOCK_SHIFT;
+		by = (yDivs + BLOCK) >> BLOCK_SHIFT;
+		bz = (zDivs + BLOCK) >> BLOCK_SHIFT;
+		long blocks = (long) bx * by * bz;
+		if (blocks > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Grid of " + blocks + " blocks is too large");
+		pages = new double[(int) blocks][];
+	}
+
+	/**
+	 * Creates a grid covering a set of particles and the two-cell reach of
+	 * the cubic kernel around them. See {@link Grid#around(SnapshotStats, double)}.
+	 */
+	public static SparseGrid around(SnapshotStats stats, double h) {
+		Grid.checkAround(stats);
+		Point3d origin = new Point3d(stats.getMin(0) - 2*h, stats.getMin(1) - 2*h, stats.getMin(2) - 2*h);
+		return new SparseGrid(origin, h,
+				(int) Math.ceil((stats.getMax(0) - stats.getMin(0)) / h) + 4,
+				(int) Math.ceil((stats.getMax(1) - stats.getMin(1)) / h) + 4,
+				(int) Math.ceil((stats.getMax(2) - stats.getMin(2)) / h) + 4);
+	}
+
+	/**
+	 * @return The number of block coordinates, allocated or not.
+	 */
+	public int getBlockCount() {
+		return pages.length;
+	}
+
+	/**
+	 * @return The number of blocks allocated since the last clear().
+	 */
+	public int getActiveBlockCount() {
+		return activeCount;
+	}
+
+	/**
+	 * @param n An index in [0, getActiveBlockCount()).
+	 * @return The block number of the n-th allocated block.
+	 */
+	public int getActiveBlock(int n) {
+		return active[n];
+	}
+
+	/**
+	 * @return The block number of the block holding node (i, j, k).
+	 */
+	public int blockOf(int i, int j, int k) {
+		return ((i >> BLOCK_SHIFT) * by + (j >> BLOCK_SHIFT)) * bz + (k >> BLOCK_SHIFT);
+	}
+
+	/**
+	 * @param block A block number.
+	 * @param out Receives the i, j and k indices of the block's first node.
+	 */
+	public void blockOrigin(int block, int[] out) {
+		out[0] = block / (by * bz) << BLOCK_SHIFT;
+		out[1] = block / bz % by << BLOCK_SHIFT;
+		out[2] = block % bz << BLOCK_SHIFT;
+	}
+
+	/**
+	 * Reads one field of a node of a block. Nodes of a block past the edge of
+	 * the grid are always zero.
+	 *
+	 * @param block A block number.
+	 * @param node The node within the block, (a*BLOCK + b)*BLOCK + c for the
+	 *        node at offset (a, b, c) from the block origin.
+	 * @param field Grid.MASS, PX, PY or PZ.
+	 */
+	public double get(int block, int node, int field) {
+		double[] page = pages[block];
+		return page == null ? 0 : page[node * FIELDS + field];
+	}
+
+	public double getMass(int i, int j, int k) {
+		return get(blockOf(i, j, k), local(i, j, k), Grid.MASS);
+	}
+
+	/**
+	 * @param out Receives the momentum of node (i, j, k), or its velocity after normalize().
+	 */
+	public void getMomentum(int i, int j, int k, Tuple3d out) {
+		double[] page = pages[blockOf(i, j, k)];
+		if (page == null) {
+			out.set(0, 0, 0);
+		} else {
+			int n = local(i, j, k) * FIELDS;
+			out.set(page[n + Grid.PX], page[n + Grid.PY], page[n + Grid.PZ]);
+		}
+	}
+
+	private static int local(int i, int j, int k) {
+		return (((i & MASK) << BLOCK_SHIFT) + (j & MASK) << BLOCK_SHIFT) + (k & MASK);
+	}
+
+	/**
+	 * Zeroes every node, releasing all blocks and keeping their storage for
+	 * the blocks of the next transfer.
+	 */
+	public void clear() {
+		if (freeCount + activeCount > free.length)
+			free = Arrays.copyOf(free, Math.max(2*free.length, freeCount + activeCount));
+		for (int n = 0; n < activeCount; n++) {
+			double[] page = pages[active[n]];
+			Arrays.fill(page, 0);
+			free[freeCount++] = page;
+			pages[active[n]] = null;
+		}
+		activeCount = 0;
+	}
+
+	/**
+	 * Drops the storage kept by clear() for reuse.
+	 */
+	public void trim() {
+		Arrays.fill(free, 0, freeCount, null);
+		freeCount = 0;
+	}
+
+	/**
+	 * @return The storage of a block, allocating or reusing some if the block has none.
+	 */
+	private double[] page(int block) {
+		double[] page = pages[block];
+		if (page == null) {
+			if (freeCount > 0) {
+				page = free[--freeCount];
+				free[freeCount] = null;
+			} else {
+				page = new double[FIELDS * BLOCK_NODES];
+			}
+			pages[block] = page;
+			if (activeCount == active.length)
+				active = Arrays.copyOf(active, 2*active.length);
+			active[activeCount++] = block;
+		}
+		return page;
+	}
+
+	/**
+	 * Transfers every live particle of a Snapshot to the grid, as
+	 * {@link Grid#gatherAll(Snapshot)} does: clears it, adds the mass and
+	 * momentum of each particle, then turns the momentum of each node of the
+	 * active blocks into velocity.
+	 *
+	 * @param ss The Snapshot.
+	 */
+	public void gatherAll(Snapshot ss) {
+		clear();
+		ParticleStore s = ss.store;
+		double[][] col = new double[ParticleStore.VZ + 1][CHUNK];
+		double[] m = new double[CHUNK];
+		for (int start = 0; start < s.size; start += CHUNK) {
+			int end = Math.min(s.size, start + CHUNK);
+			for (int c = ParticleStore.PX; c <= ParticleStore.VZ; c++)
+				s.readColumn(c, start, end, col[c], 0);
+			s.readColumn(ParticleStore.MASS, start, end, m, 0);
+			for (int i = start; i < end; i++) {
+				if (s.id[i] < 0)
+					continue;
+				int o = i - start;
+				double mi = m[o];
+				gather(col[ParticleStore.PX][o], col[ParticleStore.PY][o], col[ParticleStore.PZ][o], mi,
+						mi*col[ParticleStore.VX][o], mi*col[ParticleStore.VY][o], mi*col[ParticleStore.VZ][o]);
+			}
+		}
+		normalize();
+	}
+
+	/**
+	 * Adds a particle's mass and momentum to the 4x4x4 nodes within reach of
+	 * the kernel, allocating blocks as needed. Nodes outside the grid are skipped.
+	 *
+	 * @param p The particle.
+	 */
+	public void gather(Particle p) {
+		gather(p.pos.x, p.pos.y, p.pos.z, p.mass, p.momentum.x, p.momentum.y, p.momentum.z);
+	}
+
+	/**
+	 * Adds a particle's mass and momentum to the 4x4x4 nodes within reach of
+	 * the kernel, allocating blocks as needed. Nodes outside the grid are skipped.
+	 */
+	public void gather(double x, double y, double z, double m, double px, double py, double pz) {
+		double cx = (x - origin.x) / h, cy = (y - origin.y) / h, cz = (z - origin.z) / h;
+		// The nodes within reach are floor(c)-1 .. floor(c)+2 on each axis.
+		int ox = (int) Math.floor(cx) - 1, oy = (int) Math.floor(cy) - 1, oz = (int) Math.floor(cz) - 1;
+		for (int a = 0; a < 4; a++) {
+			int i = ox + a;
+			if (i < 0 || i > xDivs)
+				continue;
+			double wx = Grid.cubicWeight(cx - i);
+			for (int b = 0; b < 4; b++) {
+				int j = oy + b;
+				if (j < 0 || j > yDivs)
+					continue;
+				double wxy = wx * Grid.cubicWeight(cy - j);
+				for (int c = 0; c < 4; c++) {
+					int k = oz + c;
+					if (k < 0 || k > zDivs)
+						continue;
+					double w = wxy * Grid.cubicWeight(cz - k);
+					double[] page = page(blockOf(i, j, k));
+					int n = local(i, j, k) * FIELDS;
+					page[n] += w*m;
+					page[n + Grid.PX] += w*px;
+					page[n + Grid.PY] += w*py;
+					page[n + Grid.PZ] += w*pz;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Divides the momentum of every node of the active blocks by its mass,
+	 * leaving the node's velocity. Nodes without mass get zero velocity. Call
+	 * once, after all particles have been gathered.
+	 */
+	public void normalize() {
+		for (int n = 0; n < activeCount; n++) {
+			double[] page = pages[active[n]];
+			for (int p = 0; p < page.length; p += FIELDS) {
+				double m = page[p];
+				double inv = m > 0 ? 1 / m : 0;
+				page[p + Grid.PX] *= inv;
+				page[p + Grid.PY] *= inv;
+				page[p + Grid.PZ] *= inv;
+			}
+		}
+	}
+
+	/**
+	 * @return The approximate memory held by this grid, including storage kept for reuse, in bytes.
+	 */
+	public long sizeInBytes() {
+		return 8L*pages.length + 4L*active.length + 8L*free.length
+				+ 8L*FIELDS*BLOCK_NODES*(activeCount + freeCount);
+	}
+}
@@ -0,0 +1,300 @@
+package snapshot.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import snapshot.Snapshot;
+
+/**
+ * Serves decoded frames of a recording for playback and scrubbing.
+ *
+ * Decoded Snapshots are kept in an LRU cache bounded by bytes. After every
+ * request a background thread decodes the next few frames in the direction
+ * of travel, so steady playback and short scrubs are served from memory.
+ *
+ * The cache should hold at least prefetchFrames + 1 frames, or prefetching
+ * will evict frames before they are shown. Returned Snapshots are shared with
+ * the cache and must not be modified.
+ */
+public class PlaybackSource implements Closeable {
+	private final SnapshotReader reader;
+	private final int prefetchFrames;
+	private final long cacheBytes;
+
+	private final LinkedHashMap<Integer, Snapshot> cache = new LinkedHashMap<Integer, Snapshot>(16, 0.75f, true);
+	private long cachedBytes;
+
+	// The window the prefetch thread should fill, published under the lock.
+	private int wantedFrame = -1;
+	private int direction = 1;
+	private boolean closed;
+	private final Thread prefetcher;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong prefetched = new AtomicLong();
+	private final AtomicLong prefetchNanos = new AtomicLong();
+	private volatile long maxPrefetchNanos;
+
+	/**
+	 * Starts a playback source and its prefetch thread.
+	 *
+	 * @param reader The recording. The source takes ownership and closes it.
+	 * @param prefetchFrames How many frames ahead of the last request to decode.
+	 * @param cacheBytes The most memory to spend on cached frames.
+	 */
+	public PlaybackSource(SnapshotReader reader, int prefetchFrames, long cacheBytes) {
+		this.reader = reader;
+		this.prefetchFrames = prefetchFrames;
+		this.cacheBytes = cacheBytes;
+		prefetcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				prefetchLoop();
+			}
+		}, "playback-prefetch");
+		prefetcher.setDaemon(true);
+		prefetcher.start();
+	}
+
+	/**
+	 * @return The number of frames in the recording.
+	 */
+	public int getFrameCount() {
+		return reader.getFrameCount();
+	}
+
+	/**
+	 * @param t A simulation time in seconds.
+	 * @return The last frame whose time is not after t, or -1 if the recording is empty.
+	 */
+	public int frameAt(double t) {
+		return reader.seek(t);
+	}
+
+	/**
+	 * Gets the frame showing the state at time t.
+	 *
+	 * @param t A simulation time in seconds.
+	 * @return The frame, or null if the recording is empty.
+	 * @throws IOException
+	 */
+	public Snapshot getFrameAt(double t) throws IOException {
+		int k = reader.seek(t);
+		return k < 0 ? null : getFrame(k);
+	}
+
+	/**
+	 * Gets frame k, from the cache if possible, and schedules prefetching of
+	 * the frames that follow it in the direction of travel.
+	 *
+	 * @param k The frame number.
+	 * @return The decoded frame.
+	 * @throws IOException
+	 */
+	public Snapshot getFrame(int k) throws IOException {
+		return fetch(k, true);
+	}
+
+	/**
+	 * Gets the two frames around time t, for interpolation. Prefetching
+	 * follows the earlier of the two.
+	 *
+	 * @param t A simulation time in seconds.
+	 * @param out Receives frame k = frameAt(t) and frame k+1 (or k again at the end of the recording).
+	 * @return k, or -1 if the recording is empty.
+	 * @throws IOException
+	 */
+	public int getBracket(double t, Snapshot[] out) throws IOException {
+		int k = reader.seek(t);
+		if (k < 0)
+			return -1;
+		out[0] = fetch(k, true);
+		out[1] = fetch(Math.min(k+1, reader.getFrameCount()-1), false);
+		return k;
+	}
+
+	/**
+	 * @param steer Whether this request moves the prefetch window.
+	 */
+	private Snapshot fetch(int k, boolean steer) throws IOException {
+		Snapshot ss;
+		synchronized (this) {
+			if (steer) {
+				if (wantedFrame >= 0 && k != wantedFrame)
+					direction = k < wantedFrame ? -1 : 1;
+				wantedFrame = k;
+				notifyAll();
+			}
+			ss = cache.get(k);
+		}
+		if (ss != null) {
+			hits.incrementAndGet();
+			return ss;
+		}
+		misses.incrementAndGet();
+		ss = decode(k);
+		put(k, ss);
+		return ss;
+	}
+
+	/**
+	 * @return The fraction of getFrame calls served from the cache.
+	 */
+	public double getHitRatio() {
+		long h = hits.get(), total = h + misses.get();
+		return total == 0 ? 0 : h / (double) total;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of frames decoded by the prefetch thread.
+	 */
+	public long getPrefetchedFrames() {
+		return prefetched.get();
+	}
+
+	/**
+	 * @return The mean time the prefetch thread took to read and decode a frame, in milliseconds.
+	 */
+	public double getMeanPrefetchMillis() {
+		long n = prefetched.get();
+		return n == 0 ? 0 : prefetchNanos.get() / 1e6 / n;
+	}
+
+	/**
+	 * @return The longest time the prefetch thread took to read and decode a frame, in milliseconds.
+	 */
+	public double getMaxPrefetchMillis() {
+		return maxPrefetchNanos / 1e6;
+	}
+
+	/**
+	 * @return The memory currently used by cached frames, in bytes.
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("PlaybackSource[hit ratio %.3f, %d cached frames, %.1f MB, prefetch %.2f ms mean, %.2f ms max]",
+				getHitRatio(), cache.size(), getCachedBytes() / 1e6, getMeanPrefetchMillis(), getMaxPrefetchMillis());
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (prefetcher.isAlive()) {
+			try {
+				prefetcher.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		reader.close();
+	}
+
+	/**
+	 * Reads a frame with its off-heap position buffer filled in, so renderers can upload it directly.
+	 */
+	private Snapshot decode(int k) throws IOException {
+		Snapshot ss = reader.read(k);
+		ss.store.enablePosBuffer();
+		return ss;
+	}
+
+	private synchronized void put(int k, Snapshot ss) {
+		Snapshot old = cache.put(k, ss);
+		if (old != null)
+			cachedBytes -= old.store.sizeInBytes();
+		cachedBytes += ss.store.sizeInBytes();
+		Iterator<Map.Entry<Integer, Snapshot>> it = cache.entrySet().iterator();
+		while (cachedBytes > cacheBytes && cache.size() > 1 && it.hasNext()) {
+			Map.Entry<Integer, Snapshot> e = it.next();
+			if (e.getKey() == k)
+				continue;
+			cachedBytes -= e.getValue().store.sizeInBytes();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Finds the nearest frame in the prefetch window that is not cached yet.
+	 *
+	 * @return A frame number, or -1 if the window is fully cached.
+	 */
+	private synchronized int nextToPrefetch() {
+		int n = reader.getFrameCount();
+		for (int i = 1; i <= prefetchFrames; i++) {
+			int k = wantedFrame + i*direction;
+			if (k < 0 || k >= n)
+				break;
+			// containsKey does not count as an access, so it leaves the LRU order alone.
+			if (!cache.containsKey(k))
+				return k;
+		}
+		return -1;
+	}
+
+	private void prefetchLoop() {
+		while (true) {
+			int k;
+			synchronized (this) {
+				while (true) {
+					if (closed)
+						return;
+					if (wantedFrame >= 0 && (k = nextToPrefetch()) >= 0)
+						break;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			long start = System.nanoTime();
+			Snapshot ss;
+			try {
+				ss = decode(k);
+			} catch (IOException e) {
+				System.err.println("Prefetch of frame " + k + " failed: " + e.getMessage());
+				synchronized (this) {
+					// Wait for a new request rather than retrying the same frame.
+					int seen = wantedFrame;
+					while (!closed && wantedFrame == seen) {
+						try {
+							wait();
+						} catch (InterruptedException ie) {
+							return;
+						}
+					}
+				}
+				continue;
+			}
+			long nanos = System.nanoTime() - start;
+			prefetchNanos.addAndGet(nanos);
+			if (nanos > maxPrefetchNanos)
+				maxPrefetchNanos = nanos;
+			prefetched.incrementAndGet();
+			put(k, ss);
+		}
+	}
+}
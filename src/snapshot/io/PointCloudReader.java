@@ -0,0 +1,568 @@
+package snapshot.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+import snapshot.ParticleStore;
+import snapshot.Snapshot;
+
+/**
+ * Loads initial conditions from point clouds in PLY, XYZ or CSV files.
+ *
+ * The file is memory-mapped and split into chunks of about
+ * {@value #CHUNK_BYTES} bytes that end on line boundaries (or, for binary
+ * PLY, on record boundaries). One parallel pass counts the records in each
+ * chunk, which gives every chunk its first particle index; a second parallel
+ * pass parses the chunks and writes them straight into the columns of a new
+ * Snapshot.
+ *
+ * Fields named x, y, z, vx, vy, vz and mass are read; other fields, such as
+ * normals or colors, are skipped. Missing velocities are zero and missing
+ * masses take the default mass.
+ * <ul>
+ * <li>XYZ: whitespace-separated x y z per line, extra fields ignored.</li>
+ * <li>CSV: comma-separated; an optional first line of field names selects the
+ * fields, otherwise the first three are x, y, z.</li>
+ * <li>PLY: ascii, binary_little_endian or binary_big_endian, with the vertex
+ * element first.</li>
+ * </ul>
+ * Empty lines and lines starting with # are skipped in XYZ and CSV files.
+ */
+public class PointCloudReader {
+
+	public enum Format {
+		XYZ, CSV, PLY;
+
+		/**
+		 * @param path A file name ending in .xyz, .txt, .csv or .ply, in any case.
+		 * @return The format named by the extension.
+		 */
+		public static Format of(Path path) {
+			Format f = find(path);
+			if (f == null)
+				throw new IllegalArgumentException("Unknown point cloud format: " + path);
+			return f;
+		}
+
+		/**
+		 * @param path A file name.
+		 * @return The format named by the extension, or null if it is not a point cloud extension.
+		 */
+		public static Format find(Path path) {
+			String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+			if (name.endsWith(".ply")) return PLY;
+			if (name.endsWith(".csv")) return CSV;
+			if (name.endsWith(".xyz") || name.endsWith(".txt")) return XYZ;
+			return null;
+		}
+	}
+
+	/** Bytes of input per parallel task. */
+	public static final int CHUNK_BYTES = 8 << 20;
+
+	private static final String[] FIELD_NAMES = {"x", "y", "z", "vx", "vy", "vz", "mass"};
+	/** Exact powers of ten, for the fast path of number parsing. */
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++)
+			POW10[i] = 10 * POW10[i-1];
+	}
+
+	/**
+	 * Where the records are and how to read their fields.
+	 */
+	private static final class Layout {
+		long dataStart;
+		/** Records to read, or -1 to read to the end of the file. */
+		long count = -1;
+		/** Column written by each field, or -1 to skip it. */
+		int[] columns;
+		/** For text: ',' for CSV, 0 for whitespace. */
+		char separator;
+		/** For binary PLY: the byte size of each field, or 0 for text. */
+		int[] fieldBytes;
+		/** For binary PLY: the PLY type name of each field. */
+		String[] fieldTypes;
+		int recordBytes;
+		ByteOrder order;
+	}
+
+	private ParticleStore.Precision precision = ParticleStore.Precision.DOUBLE;
+	private double defaultMass = 1;
+
+	/**
+	 * @param precision How the loaded Snapshot stores particle state.
+	 */
+	public void setPrecision(ParticleStore.Precision precision) {
+		this.precision = precision;
+	}
+
+	/**
+	 * @param mass The mass given to particles when the file has no mass field.
+	 */
+	public void setDefaultMass(double mass) {
+		defaultMass = mass;
+	}
+
+	/**
+	 * Loads a point cloud, choosing the format by file extension.
+	 *
+	 * @param path The file to read.
+	 * @return A new Snapshot at time 0 holding one particle per point.
+	 * @throws IOException If the file cannot be read or is malformed.
+	 */
+	public Snapshot read(Path path) throws IOException {
+		return read(path, Format.of(path));
+	}
+
+	/**
+	 * Loads a point cloud in a given format.
+	 *
+	 * @param path The file to read.
+	 * @param format The file's format.
+	 * @return A new Snapshot at time 0 holding one particle per point.
+	 * @throws IOException If the file cannot be read or is malformed.
+	 */
+	public Snapshot read(Path path, Format format) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			Layout layout;
+			switch (format) {
+			case PLY: layout = readPlyHeader(channel); break;
+			case CSV: layout = readCsvHeader(channel); break;
+			default: layout = new Layout(); layout.columns = new int[] {0, 1, 2}; break;
+			}
+			for (int c = ParticleStore.PX; c <= ParticleStore.PZ; c++)
+				if (indexOf(layout.columns, c) < 0)
+					throw new IOException("Point cloud has no " + FIELD_NAMES[c] + " field: " + path);
+			try {
+				return layout.fieldBytes != null ? readBinary(channel, layout) : readText(channel, layout);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	private Snapshot readText(final FileChannel channel, final Layout layout) throws IOException {
+		final long[] bounds = chunkBounds(channel, layout.dataStart, channel.size());
+		final int chunks = bounds.length - 1;
+		final boolean comments = layout.separator != 0 || layout.count < 0;
+		final long[] first = new long[chunks + 1];
+		IntStream.range(0, chunks).parallel().forEach(k -> {
+			ByteBuffer b = map(channel, bounds[k], bounds[k+1]);
+			long records = 0;
+			for (int p = 0, end = b.limit(); p < end; p = nextLine(b, p))
+				if (isRecord(b, p, comments))
+					records++;
+			first[k+1] = records;
+		});
+		for (int k = 0; k < chunks; k++)
+			first[k+1] += first[k];
+		long total = first[chunks];
+		if (layout.count >= 0) {
+			if (total < layout.count)
+				throw new IOException("Point cloud ends after " + total + " of " + layout.count + " points");
+			total = layout.count;
+		}
+		final Snapshot ss = newSnapshot(total, layout.columns);
+		final int n = ss.size();
+		IntStream.range(0, chunks).parallel().forEach(k -> {
+			if (first[k] >= n)
+				return;
+			ByteBuffer b = map(channel, bounds[k], bounds[k+1]);
+			int from = (int) first[k], to = (int) Math.min(n, first[k+1]);
+			double[][] values = new double[ParticleStore.COLUMNS][to - from];
+			int i = 0;
+			for (int p = 0, end = b.limit(); p < end && i < to - from; p = nextLine(b, p)) {
+				if (!isRecord(b, p, comments))
+					continue;
+				parseLine(b, p, layout, values, i, bounds[k]);
+				i++;
+			}
+			write(ss.store, layout.columns, values, from, to);
+		});
+		return ss;
+	}
+
+	private Snapshot readBinary(final FileChannel channel, final Layout layout) throws IOException {
+		final long available = (channel.size() - layout.dataStart) / layout.recordBytes;
+		if (available < layout.count)
+			throw new IOException("Point cloud ends after " + available + " of " + layout.count + " points");
+		final Snapshot ss = newSnapshot(layout.count, layout.columns);
+		final int n = ss.size();
+		final int perChunk = Math.max(1, CHUNK_BYTES / layout.recordBytes);
+		final int[] offsets = new int[layout.columns.length];
+		for (int f = 1; f < offsets.length; f++)
+			offsets[f] = offsets[f-1] + layout.fieldBytes[f-1];
+		IntStream.range(0, (n + perChunk - 1) / perChunk).parallel().forEach(k -> {
+			int from = k * perChunk, to = Math.min(n, from + perChunk);
+			long start = layout.dataStart + (long) from * layout.recordBytes;
+			ByteBuffer b = map(channel, start, start + (long) (to - from) * layout.recordBytes).order(layout.order);
+			double[][] values = new double[ParticleStore.COLUMNS][to - from];
+			for (int f = 0; f < layout.columns.length; f++) {
+				int c = layout.columns[f];
+				if (c < 0)
+					continue;
+				double[] v = values[c];
+				String type = layout.fieldTypes[f];
+				for (int i = 0, p = offsets[f]; i < to - from; i++, p += layout.recordBytes)
+					v[i] = readBinary(b, p, type);
+			}
+			write(ss.store, layout.columns, values, from, to);
+		});
+		return ss;
+	}
+
+	private Snapshot newSnapshot(long count, int[] columns) throws IOException {
+		if (count > Integer.MAX_VALUE - 8)
+			throw new IOException("Point cloud has " + count + " points, more than a Snapshot can hold");
+		Snapshot ss = new Snapshot((int) count, 0, precision);
+		if (indexOf(columns, ParticleStore.MASS) < 0) {
+			Object mass = ss.store.column(ParticleStore.MASS);
+			if (mass instanceof double[])
+				Arrays.fill((double[]) mass, 0, ss.size(), defaultMass);
+			else
+				Arrays.fill((float[]) mass, 0, ss.size(), (float) defaultMass);
+			ss.store.markChanged(ParticleStore.MASS, 0, ss.size());
+		}
+		return ss;
+	}
+
+	private static void write(ParticleStore s, int[] columns, double[][] values, int from, int to) {
+		for (int c : columns)
+			if (c >= 0)
+				s.writeColumn(c, from, to, values[c], 0);
+	}
+
+	/**
+	 * Splits [start, end) into chunks of about CHUNK_BYTES that each begin at
+	 * the start of a line.
+	 */
+	private static long[] chunkBounds(FileChannel channel, long start, long end) throws IOException {
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(start);
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		long p = start + CHUNK_BYTES;
+		while (p < end) {
+			// Move p just past the next line break.
+			boolean found = false;
+			while (!found && p < end) {
+				window.clear();
+				int r = channel.read(window, p);
+				if (r <= 0)
+					break;
+				for (int i = 0; i < r; i++) {
+					if (window.get(i) == '\n') {
+						p += i + 1;
+						found = true;
+						break;
+					}
+				}
+				if (!found)
+					p += r;
+			}
+			if (p >= end)
+				break;
+			bounds.add(p);
+			p += CHUNK_BYTES;
+		}
+		bounds.add(end);
+		long[] out = new long[bounds.size()];
+		for (int i = 0; i < out.length; i++)
+			out[i] = bounds.get(i);
+		return out;
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long from, long to) {
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static int nextLine(ByteBuffer b, int p) {
+		int end = b.limit();
+		while (p < end && b.get(p) != '\n')
+			p++;
+		return p + 1;
+	}
+
+	private static boolean isRecord(ByteBuffer b, int p, boolean comments) {
+		for (int end = b.limit(); p < end; p++) {
+			byte c = b.get(p);
+			if (c == '\n')
+				return false;
+			if (!isSpace(c))
+				return !(comments && c == '#');
+		}
+		return false;
+	}
+
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	/**
+	 * Parses the fields of the line starting at p into row i of values.
+	 */
+	private static void parseLine(ByteBuffer b, int p, Layout layout, double[][] values, int i, long base) {
+		int end = b.limit();
+		char sep = layout.separator;
+		for (int f = 0; f < layout.columns.length; f++) {
+			while (p < end && isSpace(b.get(p)))
+				p++;
+			if (p >= end || b.get(p) == '\n') {
+				if (layout.columns[f] >= 0)
+					throw new UncheckedIOException(new IOException("Missing field " + f + " in line at byte " + (base + p)));
+				continue;
+			}
+			int start = p;
+			while (p < end && b.get(p) != '\n' && (sep == 0 ? !isSpace(b.get(p)) : b.get(p) != sep))
+				p++;
+			int stop = p;
+			while (stop > start && isSpace(b.get(stop - 1)))
+				stop--;
+			int c = layout.columns[f];
+			if (c >= 0)
+				values[c][i] = parseDouble(b, start, stop, base);
+			if (sep != 0 && p < end && b.get(p) == sep)
+				p++;
+		}
+	}
+
+	/**
+	 * Parses a decimal number. Numbers with up to 18 significant digits and a
+	 * small exponent are converted exactly by one multiplication or division
+	 * of exactly representable values; anything else goes to Double.parseDouble.
+	 */
+	static double parseDouble(ByteBuffer b, int start, int stop, long base) {
+		int p = start;
+		boolean negative = false;
+		if (p < stop && (b.get(p) == '-' || b.get(p) == '+'))
+			negative = b.get(p++) == '-';
+		long mantissa = 0;
+		int digits = 0, scale = 0;
+		boolean any = false;
+		while (p < stop && b.get(p) >= '0' && b.get(p) <= '9') {
+			if (digits < 18) {
+				mantissa = 10*mantissa + (b.get(p) - '0');
+				if (mantissa != 0)
+					digits++;
+			} else {
+				scale++;
+			}
+			p++;
+			any = true;
+		}
+		if (p < stop && b.get(p) == '.') {
+			p++;
+			while (p < stop && b.get(p) >= '0' && b.get(p) <= '9') {
+				if (digits < 18) {
+					mantissa = 10*mantissa + (b.get(p) - '0');
+					if (mantissa != 0)
+						digits++;
+					scale--;
+				}
+				p++;
+				any = true;
+			}
+		}
+		if (any && p < stop && (b.get(p) == 'e' || b.get(p) == 'E')) {
+			p++;
+			boolean negExp = false;
+			if (p < stop && (b.get(p) == '-' || b.get(p) == '+'))
+				negExp = b.get(p++) == '-';
+			int exp = 0;
+			boolean expDigits = false;
+			while (p < stop && b.get(p) >= '0' && b.get(p) <= '9') {
+				exp = Math.min(10*exp + (b.get(p++) - '0'), 100000);
+				expDigits = true;
+			}
+			any = expDigits;
+			scale += negExp ? -exp : exp;
+		}
+		if (any && p == stop && mantissa < (1L << 53) && Math.abs(scale) < POW10.length) {
+			double v = scale >= 0 ? mantissa * POW10[scale] : mantissa / POW10[-scale];
+			return negative ? -v : v;
+		}
+		byte[] text = new byte[stop - start];
+		for (int i = 0; i < text.length; i++)
+			text[i] = b.get(start + i);
+		try {
+			return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			throw new UncheckedIOException(new IOException("Bad number \"" + new String(text, StandardCharsets.US_ASCII)
+					+ "\" at byte " + (base + start)));
+		}
+	}
+
+	private static double readBinary(ByteBuffer b, int p, String type) {
+		switch (type) {
+		case "char": case "int8": return b.get(p);
+		case "uchar": case "uint8": return b.get(p) & 0xff;
+		case "short": case "int16": return b.getShort(p);
+		case "ushort": case "uint16": return b.getShort(p) & 0xffff;
+		case "int": case "int32": return b.getInt(p);
+		case "uint": case "uint32": return b.getInt(p) & 0xffffffffL;
+		case "float": case "float32": return b.getFloat(p);
+		default: return b.getDouble(p);
+		}
+	}
+
+	private static int typeBytes(String type) throws IOException {
+		switch (type) {
+		case "char": case "int8": case "uchar": case "uint8": return 1;
+		case "short": case "int16": case "ushort": case "uint16": return 2;
+		case "int": case "int32": case "uint": case "uint32": case "float": case "float32": return 4;
+		case "double": case "float64": return 8;
+		default: throw new IOException("Unsupported PLY property type " + type);
+		}
+	}
+
+	private static Layout readPlyHeader(FileChannel channel) throws IOException {
+		Layout layout = new Layout();
+		List<String> lines = readHeaderLines(channel, "end_header", layout);
+		if (lines.isEmpty() || !lines.get(0).equals("ply"))
+			throw new IOException("Not a PLY file");
+		String format = null;
+		boolean inVertex = false, seenElement = false;
+		List<Integer> columns = new ArrayList<Integer>();
+		List<String> types = new ArrayList<String>();
+		for (String line : lines) {
+			String[] t = line.trim().split("\\s+");
+			if (t[0].equals("format")) {
+				format = t[1];
+			} else if (t[0].equals("element")) {
+				if (!seenElement && !t[1].equals("vertex"))
+					throw new IOException("PLY vertex element must come first");
+				inVertex = !seenElement;
+				seenElement = true;
+				if (inVertex)
+					layout.count = Long.parseLong(t[2]);
+			} else if (t[0].equals("property") && inVertex) {
+				if (t[1].equals("list"))
+					throw new IOException("PLY vertex list properties are not supported");
+				types.add(t[1]);
+				columns.add(column(t[2]));
+			}
+		}
+		if (layout.count < 0)
+			throw new IOException("PLY file has no vertex element");
+		layout.columns = toArray(columns);
+		if ("ascii".equals(format))
+			return layout;
+		if ("binary_little_endian".equals(format))
+			layout.order = ByteOrder.LITTLE_ENDIAN;
+		else if ("binary_big_endian".equals(format))
+			layout.order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException("Unsupported PLY format " + format);
+		layout.fieldTypes = types.toArray(new String[0]);
+		layout.fieldBytes = new int[types.size()];
+		for (int f = 0; f < types.size(); f++) {
+			layout.fieldBytes[f] = typeBytes(types.get(f));
+			layout.recordBytes += layout.fieldBytes[f];
+		}
+		return layout;
+	}
+
+	private static Layout readCsvHeader(FileChannel channel) throws IOException {
+		Layout layout = new Layout();
+		layout.separator = ',';
+		List<String> lines = readHeaderLines(channel, null, layout);
+		String first = lines.isEmpty() ? "" : lines.get(0);
+		String[] names = first.split(",");
+		boolean header = false;
+		for (String name : names) {
+			String s = name.trim();
+			if (!s.isEmpty() && !(Character.isDigit(s.charAt(0)) || "+-.".indexOf(s.charAt(0)) >= 0))
+				header = true;
+		}
+		if (header) {
+			layout.columns = new int[names.length];
+			for (int f = 0; f < names.length; f++)
+				layout.columns[f] = column(names[f].trim());
+		} else {
+			// No header: the data starts at the beginning, x, y, z first.
+			layout.dataStart = 0;
+			layout.columns = new int[] {0, 1, 2};
+		}
+		return layout;
+	}
+
+	/**
+	 * Reads lines from the start of the file up to and including one equal to
+	 * terminator, or just the first line if terminator is null, and sets
+	 * dataStart to the byte after them.
+	 */
+	private static List<String> readHeaderLines(FileChannel channel, String terminator, Layout layout) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		byte[] line = new byte[256];
+		int length = 0;
+		long p = 0;
+		while (true) {
+			window.clear();
+			int r = channel.read(window, p);
+			if (r <= 0) {
+				if (terminator != null)
+					throw new IOException("Header is not terminated by " + terminator);
+				layout.dataStart = p;
+				lines.add(new String(line, 0, length, StandardCharsets.US_ASCII));
+				return lines;
+			}
+			for (int i = 0; i < r; i++) {
+				byte c = window.get(i);
+				if (c != '\n') {
+					if (length == line.length)
+						line = Arrays.copyOf(line, 2*length);
+					line[length++] = c;
+					continue;
+				}
+				String s = new String(line, 0, length, StandardCharsets.US_ASCII).trim();
+				length = 0;
+				lines.add(s);
+				if (terminator == null || s.equals(terminator)) {
+					layout.dataStart = p + i + 1;
+					return lines;
+				}
+			}
+			p += r;
+		}
+	}
+
+	private static int column(String field) {
+		String name = field.toLowerCase(Locale.ROOT);
+		for (int c = 0; c < FIELD_NAMES.length; c++)
+			if (FIELD_NAMES[c].equals(name))
+				return c;
+		return -1;
+	}
+
+	private static int indexOf(int[] a, int v) {
+		for (int i = 0; i < a.length; i++)
+			if (a[i] == v)
+				return i;
+		return -1;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] a = new int[list.size()];
+		for (int i = 0; i < a.length; i++)
+			a[i] = list.get(i);
+		return a;
+	}
+}
@@ -0,0 +1,574 @@
+package snapshot.io;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import snapshot.ParticleStore;
+import snapshot.Snapshot;
+
+/**
+ * Lossy compression for recorded Snapshots (frame encoding
+ * {@link SnapshotFormat#ENCODING_QUANTIZED}).
+ *
+ * Positions and velocities are quantized onto a uniform grid whose origin is
+ * the bounding box corner of the most recent keyframe, so every decoded
+ * component is within the configured error bound of the original. Frames
+ * between keyframes store the change in each quantized value since the
+ * previous frame, which is small for slowly moving particles. Masses are
+ * stored losslessly. Particle ids are stored in keyframes only, and a change
+ * of particle order forces a keyframe. The result is split into particle
+ * blocks that are deflated and inflated in parallel.
+ *
+ * The error bound holds as long as a component's range divided by twice the
+ * bound fits in 31 bits; past that the grid step is widened to fit.
+ */
+public class SnapshotCodec {
+	public static final int DEFAULT_BLOCK_PARTICLES = 1 << 15;
+
+	/** Number of quantized columns: px, py, pz, vx, vy, vz. */
+	private static final int QCOLUMNS = 6;
+	/** Largest quantized magnitude, leaving room to round. */
+	private static final double QMAX = (double) (Integer.MAX_VALUE - 1);
+	/** Worst-case varint bytes per particle: six zigzag longs, one long of mass bits and one id. */
+	private static final int MAX_BYTES_PER_PARTICLE = 8*10;
+
+	public final double posError;
+	public final double velError;
+	public final int keyframeInterval;
+	public final int blockParticles;
+	public final int level;
+
+	/**
+	 * Creates a codec with the default block size and fastest deflate level.
+	 *
+	 * @param posError The largest allowed absolute error in a position component.
+	 * @param velError The largest allowed absolute error in a velocity component.
+	 * @param keyframeInterval Write a keyframe at least this often, in frames.
+	 */
+	public SnapshotCodec(double posError, double velError, int keyframeInterval) {
+		this(posError, velError, keyframeInterval, DEFAULT_BLOCK_PARTICLES, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param posError The largest allowed absolute error in a position component.
+	 * @param velError The largest allowed absolute error in a velocity component.
+	 * @param keyframeInterval Write a keyframe at least this often, in frames.
+	 * @param blockParticles The number of particles compressed together in one block.
+	 * @param level The deflate level, 1 (fastest) to 9 (smallest).
+	 */
+	public SnapshotCodec(double posError, double velError, int keyframeInterval, int blockParticles, int level) {
+		if (!(posError > 0) || !(velError > 0))
+			throw new IllegalArgumentException("Error bounds must be positive");
+		if (keyframeInterval <= 0 || blockParticles <= 0)
+			throw new IllegalArgumentException("Keyframe interval and block size must be positive");
+		this.posError = posError;
+		this.velError = velError;
+		this.keyframeInterval = keyframeInterval;
+		this.blockParticles = blockParticles;
+		this.level = level;
+	}
+
+	public Encoder newEncoder() {
+		return new Encoder();
+	}
+
+	public static Decoder newDecoder() {
+		return new Decoder();
+	}
+
+	/**
+	 * Encodes a sequence of frames. Each Encoder remembers the previous frame,
+	 * so frames must be passed in the order they are written.
+	 */
+	public final class Encoder {
+		private int n = -1;
+		private int channels;
+		private int sinceKey;
+		private boolean lastKeyframe;
+		private long order;
+		private final double[] origin = new double[QCOLUMNS];
+		private final double[] step = new double[QCOLUMNS];
+		private final int[][] prevQ = new int[QCOLUMNS][];
+		private long[] prevMass;
+
+		private byte[][] packed = new byte[0][];
+		private int[] packedLength = new int[0];
+		private int[] rawLength = new int[0];
+		private ByteBuffer body = ByteBuffer.allocate(0);
+
+		private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level, true);
+			}
+		};
+		private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+			@Override
+			protected byte[] initialValue() {
+				return new byte[blockParticles * MAX_BYTES_PER_PARTICLE];
+			}
+		};
+		private final ThreadLocal<double[]> values = new ThreadLocal<double[]>() {
+			@Override
+			protected double[] initialValue() {
+				return new double[blockParticles];
+			}
+		};
+
+		private Encoder() {}
+
+		/**
+		 * Encodes one frame.
+		 *
+		 * @param ss The Snapshot to encode.
+		 * @param channels The channels to store, as a bit set of SnapshotFormat.CHANNEL_* values.
+		 * @return The frame body, from position 0 to its limit. It is reused by the next call.
+		 */
+		public ByteBuffer encode(Snapshot ss, int channels) {
+			final ParticleStore s = ss.store;
+			channels &= SnapshotFormat.CHANNEL_ALL;
+			boolean key = s.size != n || channels != this.channels || sinceKey >= keyframeInterval
+					|| ((channels & SnapshotFormat.CHANNEL_ID) != 0 && s.getOrder() != order);
+			if (key || !fitsGrid(s, channels))
+				key = true;
+			if (key) {
+				n = s.size;
+				this.channels = channels;
+				order = s.getOrder();
+				sinceKey = 0;
+				placeGrid(s, channels);
+				for (int c = 0; c < QCOLUMNS; c++)
+					if (prevQ[c] == null || prevQ[c].length != n)
+						prevQ[c] = new int[n];
+				if (prevMass == null || prevMass.length != n)
+					prevMass = new long[n];
+			}
+			sinceKey++;
+			lastKeyframe = key;
+
+			final int nBlocks = (n + blockParticles - 1) / blockParticles;
+			if (packed.length < nBlocks) {
+				packed = Arrays.copyOf(packed, nBlocks);
+				packedLength = new int[nBlocks];
+				rawLength = new int[nBlocks];
+			}
+			final boolean keyframe = key;
+			final int ch = channels;
+			IntStream.range(0, nBlocks).parallel().forEach(b -> encodeBlock(b, s, ch, keyframe));
+
+			int qcols = quantizedColumns(channels);
+			long size = 8 + 16L*qcols + 8L*nBlocks;
+			for (int b = 0; b < nBlocks; b++)
+				size += packedLength[b];
+			size = (size + 7) & ~7L;
+			if (size > Integer.MAX_VALUE)
+				throw new IllegalStateException("Encoded frame exceeds 2 GB");
+			if (body.capacity() < size)
+				body = ByteBuffer.allocate((int) size).order(SnapshotFormat.ORDER);
+			body.clear();
+			body.putInt(blockParticles);
+			body.putInt(nBlocks);
+			for (int c = 0; c < QCOLUMNS; c++) {
+				if (stored(c, channels)) {
+					body.putDouble(origin[c]);
+					body.putDouble(step[c]);
+				}
+			}
+			for (int b = 0; b < nBlocks; b++) {
+				body.putInt(packedLength[b]);
+				body.putInt(rawLength[b]);
+			}
+			for (int b = 0; b < nBlocks; b++)
+				body.put(packed[b], 0, packedLength[b]);
+			while (body.position() < size)
+				body.put((byte) 0);
+			body.flip();
+			return body;
+		}
+
+		/**
+		 * @return Whether the last encoded frame was a keyframe.
+		 */
+		public boolean wasKeyframe() {
+			return lastKeyframe;
+		}
+
+		/**
+		 * Forces the next frame to be a keyframe.
+		 */
+		public void requestKeyframe() {
+			sinceKey = keyframeInterval;
+		}
+
+		private boolean fitsGrid(ParticleStore s, int channels) {
+			for (int c = 0; c < QCOLUMNS; c++) {
+				if (!stored(c, channels))
+					continue;
+				double[] mm = minMax(s, c);
+				// Written so that NaN also fails the test.
+				if (!((mm[0] - origin[c]) / step[c] >= -QMAX && (mm[1] - origin[c]) / step[c] <= QMAX))
+					return false;
+			}
+			return true;
+		}
+
+		private void placeGrid(ParticleStore s, int channels) {
+			for (int c = 0; c < QCOLUMNS; c++) {
+				if (!stored(c, channels))
+					continue;
+				double[] mm = minMax(s, c);
+				if (Double.isNaN(mm[0]) || Double.isInfinite(mm[0]) || Double.isInfinite(mm[1]))
+					throw new IllegalArgumentException("Cannot quantize non-finite particle state");
+				double err = c < 3 ? posError : velError;
+				origin[c] = mm[0];
+				step[c] = Math.max(2*err, (mm[1] - mm[0]) / QMAX);
+			}
+		}
+
+		private void encodeBlock(int b, ParticleStore s, int channels, boolean key) {
+			int from = b * blockParticles;
+			int to = Math.min(n, from + blockParticles);
+			byte[] raw = scratch.get();
+			double[] v = values.get();
+			int p = 0;
+			for (int c = 0; c < QCOLUMNS; c++) {
+				if (!stored(c, channels))
+					continue;
+				s.readColumn(c, from, to, v, 0);
+				int[] prev = prevQ[c];
+				double o = origin[c], inv = 1 / step[c];
+				for (int i = from; i < to; i++) {
+					int q = (int) Math.floor((v[i - from] - o) * inv + 0.5);
+					long d = key ? q : (long) q - prev[i];
+					prev[i] = q;
+					p = putVarint(raw, p, (d << 1) ^ (d >> 63));
+				}
+			}
+			if ((channels & SnapshotFormat.CHANNEL_MASS) != 0) {
+				s.readColumn(ParticleStore.MASS, from, to, v, 0);
+				for (int i = from; i < to; i++) {
+					long bits = Double.doubleToRawLongBits(v[i - from]);
+					p = putVarint(raw, p, key ? bits : bits ^ prevMass[i]);
+					prevMass[i] = bits;
+				}
+			}
+			if (key && (channels & SnapshotFormat.CHANNEL_ID) != 0) {
+				for (int i = from; i < to; i++) {
+					long d = (long) s.id[i] - i;
+					p = putVarint(raw, p, (d << 1) ^ (d >> 63));
+				}
+			}
+
+			Deflater d = deflaters.get();
+			d.reset();
+			d.setInput(raw, 0, p);
+			d.finish();
+			byte[] out = packed[b];
+			if (out == null || out.length < p + 64)
+				out = new byte[p + p/8 + 64];
+			int len = 0;
+			while (!d.finished()) {
+				if (len == out.length)
+					out = Arrays.copyOf(out, 2*out.length);
+				len += d.deflate(out, len, out.length - len);
+			}
+			packed[b] = out;
+			packedLength[b] = len;
+			rawLength[b] = p;
+		}
+	}
+
+	/**
+	 * Decodes a sequence of frames written by an Encoder. Frames after a
+	 * keyframe must be decoded in order.
+	 */
+	public static final class Decoder {
+		private int n = -1;
+		private int channels;
+		private final double[] origin = new double[QCOLUMNS];
+		private final double[] step = new double[QCOLUMNS];
+		private final int[][] q = new int[QCOLUMNS][];
+		private long[] massBits;
+		private int[] ids;
+
+		private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+			@Override
+			protected Inflater initialValue() {
+				return new Inflater(true);
+			}
+		};
+		private final ThreadLocal<byte[][]> scratch = new ThreadLocal<byte[][]>() {
+			@Override
+			protected byte[][] initialValue() {
+				return new byte[][] { new byte[0], new byte[0] };
+			}
+		};
+		private final ThreadLocal<double[]> values = new ThreadLocal<double[]>() {
+			@Override
+			protected double[] initialValue() {
+				return new double[DEFAULT_BLOCK_PARTICLES];
+			}
+		};
+
+		private Decoder() {}
+
+		/**
+		 * Applies one encoded frame to the decoder state.
+		 *
+		 * @param body The frame body, from its position to its limit.
+		 * @param n The particle count from the frame header.
+		 * @param channels The channels from the frame header.
+		 * @param key Whether the frame is a keyframe.
+		 * @throws DataFormatException If the body is corrupt.
+		 */
+		public void decode(ByteBuffer body, int n, int channels, boolean key) throws DataFormatException {
+			final ByteBuffer in = body.slice().order(SnapshotFormat.ORDER);
+			if (!key && (n != this.n || channels != this.channels))
+				throw new IllegalStateException("Delta frame does not follow the frame it was encoded against");
+			if (key) {
+				this.n = n;
+				this.channels = channels;
+				for (int c = 0; c < QCOLUMNS; c++)
+					if (stored(c, channels) && (q[c] == null || q[c].length != n))
+						q[c] = new int[n];
+				if ((channels & SnapshotFormat.CHANNEL_MASS) != 0 && (massBits == null || massBits.length != n))
+					massBits = new long[n];
+				if ((channels & SnapshotFormat.CHANNEL_ID) != 0 && (ids == null || ids.length != n))
+					ids = new int[n];
+			}
+			final int blockParticles = in.getInt(0);
+			final int nBlocks = in.getInt(4);
+			int p = 8;
+			for (int c = 0; c < QCOLUMNS; c++) {
+				if (stored(c, channels)) {
+					origin[c] = in.getDouble(p);
+					step[c] = in.getDouble(p + 8);
+					p += 16;
+				}
+			}
+			final int[] start = new int[nBlocks];
+			final int[] packedLength = new int[nBlocks];
+			final int[] rawLength = new int[nBlocks];
+			int data = p + 8*nBlocks;
+			for (int b = 0; b < nBlocks; b++) {
+				packedLength[b] = in.getInt(p + 8*b);
+				rawLength[b] = in.getInt(p + 8*b + 4);
+				start[b] = data;
+				data += packedLength[b];
+			}
+			final boolean keyframe = key;
+			try {
+				IntStream.range(0, nBlocks).parallel().forEach(b -> {
+					try {
+						decodeBlock(in, start[b], packedLength[b], rawLength[b],
+								b * blockParticles, Math.min(this.n, (b+1) * blockParticles), keyframe);
+					} catch (DataFormatException e) {
+						throw new IllegalStateException(e);
+					}
+				});
+			} catch (IllegalStateException e) {
+				if (e.getCause() instanceof DataFormatException)
+					throw (DataFormatException) e.getCause();
+				throw e;
+			}
+		}
+
+		/**
+		 * Writes the most recently decoded frame into a Snapshot with room for its
+		 * particles, which is resized to the frame's particle count. Channels not
+		 * stored in the frame are left untouched.
+		 *
+		 * @param out The Snapshot to fill in.
+		 */
+		public void output(Snapshot out) {
+			final ParticleStore s = out.store;
+			if (n > s.capacity)
+				throw new IllegalArgumentException("Frame has " + n + " particles, Snapshot has room for " + s.capacity);
+			if (s.size != n)
+				s.resize(n);
+			final int nBlocks = (n + DEFAULT_BLOCK_PARTICLES - 1) / DEFAULT_BLOCK_PARTICLES;
+			IntStream.range(0, nBlocks).parallel().forEach(b -> {
+				int from = b * DEFAULT_BLOCK_PARTICLES;
+				int to = Math.min(n, from + DEFAULT_BLOCK_PARTICLES);
+				double[] v = values.get();
+				for (int c = 0; c < QCOLUMNS; c++) {
+					if (!stored(c, channels))
+						continue;
+					int[] qc = q[c];
+					double o = origin[c], st = step[c];
+					for (int i = from; i < to; i++)
+						v[i - from] = o + qc[i] * st;
+					s.writeColumn(c, from, to, v, 0);
+				}
+				if ((channels & SnapshotFormat.CHANNEL_MASS) != 0) {
+					for (int i = from; i < to; i++)
+						v[i - from] = Double.longBitsToDouble(massBits[i]);
+					s.writeColumn(ParticleStore.MASS, from, to, v, 0);
+				}
+				if ((channels & SnapshotFormat.CHANNEL_POS) != 0)
+					s.syncPosBuffer(from, to);
+			});
+			if ((channels & SnapshotFormat.CHANNEL_ID) != 0)
+				SnapshotReader.copyIds(IntBuffer.wrap(ids), s);
+		}
+
+		private void decodeBlock(ByteBuffer in, int start, int packedLength, int rawLength,
+				int from, int to, boolean key) throws DataFormatException {
+			byte[][] buffers = scratch.get();
+			if (buffers[0].length < packedLength)
+				buffers[0] = new byte[packedLength];
+			if (buffers[1].length < rawLength)
+				buffers[1] = new byte[rawLength];
+			byte[] packed = buffers[0], raw = buffers[1];
+			ByteBuffer src = in.duplicate();
+			src.position(start);
+			src.get(packed, 0, packedLength);
+			Inflater inf = inflaters.get();
+			inf.reset();
+			inf.setInput(packed, 0, packedLength);
+			int got = 0;
+			while (got < rawLength) {
+				int r = inf.inflate(raw, got, rawLength - got);
+				if (r == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary()))
+					throw new DataFormatException("Truncated block");
+				got += r;
+			}
+
+			int[] pos = {0};
+			for (int c = 0; c < QCOLUMNS; c++) {
+				if (!stored(c, channels))
+					continue;
+				int[] qc = q[c];
+				for (int i = from; i < to; i++) {
+					long z = getVarint(raw, pos);
+					long d = (z >>> 1) ^ -(z & 1);
+					qc[i] = (int) (key ? d : qc[i] + d);
+				}
+			}
+			if ((channels & SnapshotFormat.CHANNEL_MASS) != 0) {
+				for (int i = from; i < to; i++) {
+					long bits = getVarint(raw, pos);
+					massBits[i] = key ? bits : bits ^ massBits[i];
+				}
+			}
+			if (key && (channels & SnapshotFormat.CHANNEL_ID) != 0) {
+				for (int i = from; i < to; i++) {
+					long z = getVarint(raw, pos);
+					ids[i] = (int) (i + ((z >>> 1) ^ -(z & 1)));
+				}
+			}
+		}
+	}
+
+	private static boolean stored(int column, int channels) {
+		int channel = column < 3 ? SnapshotFormat.CHANNEL_POS : SnapshotFormat.CHANNEL_VEL;
+		return (channels & channel) != 0;
+	}
+
+	private static int quantizedColumns(int channels) {
+		int c = 0;
+		if ((channels & SnapshotFormat.CHANNEL_POS) != 0) c += 3;
+		if ((channels & SnapshotFormat.CHANNEL_VEL) != 0) c += 3;
+		return c;
+	}
+
+	private static double[] minMax(ParticleStore s, int column) {
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		if (s.size == 0)
+			return new double[] { 0, 0 };
+		Object a = s.column(column);
+		if (a instanceof double[]) {
+			double[] d = (double[]) a;
+			for (int i = 0; i < s.size; i++) {
+				double v = d[i];
+				if (v < min) min = v;
+				if (v > max) max = v;
+				if (v != v) return new double[] { Double.NaN, Double.NaN };
+			}
+		} else {
+			float[] f = (float[]) a;
+			for (int i = 0; i < s.size; i++) {
+				float v = f[i];
+				if (v < min) min = v;
+				if (v > max) max = v;
+				if (v != v) return new double[] { Double.NaN, Double.NaN };
+			}
+		}
+		return new double[] { min, max };
+	}
+
+	private static int putVarint(byte[] out, int p, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out[p++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out[p++] = (byte) v;
+		return p;
+	}
+
+	private static long getVarint(byte[] in, int[] pos) {
+		int p = pos[0];
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in[p++];
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		pos[0] = p;
+		return v;
+	}
+
+	public static void main(String[] args) throws DataFormatException {
+		SnapshotCodec codec = new SnapshotCodec(1e-3, 1e-2, 4, 1000, Deflater.BEST_SPEED);
+		Encoder encoder = codec.newEncoder();
+		Decoder decoder = newDecoder();
+		Snapshot ss = new Snapshot(5000, 0), out = new Snapshot(5000, 0);
+		ParticleStore s = ss.store;
+		Random r = new Random(1);
+		for (int i = 0; i < s.size; i++) {
+			s.setPos(i, r.nextGaussian(), 10*r.nextDouble(), -5);
+			s.setVel(i, r.nextGaussian(), r.nextGaussian(), 0);
+			s.setMass(i, r.nextDouble());
+		}
+		int keyframes = 0;
+		for (int frame = 0; frame < 10; frame++) {
+			if (frame == 6)
+				s.kill(17);
+			for (int i = 0; i < s.size; i++)
+				s.setPos(i, s.get(ParticleStore.PX, i) + 0.01*s.get(ParticleStore.VX, i), s.get(ParticleStore.PY, i), s.get(ParticleStore.PZ, i));
+			ByteBuffer body = encoder.encode(ss, SnapshotFormat.CHANNEL_ALL);
+			boolean key = encoder.wasKeyframe();
+			if (key)
+				keyframes++;
+			decoder.decode(body, s.size, SnapshotFormat.CHANNEL_ALL, key);
+			decoder.output(out);
+
+			double posErr = 0, velErr = 0;
+			for (int i = 0; i < s.size; i++) {
+				for (int a = 0; a < 3; a++) {
+					posErr = Math.max(posErr, Math.abs(s.get(ParticleStore.PX + a, i) - out.store.get(ParticleStore.PX + a, i)));
+					velErr = Math.max(velErr, Math.abs(s.get(ParticleStore.VX + a, i) - out.store.get(ParticleStore.VX + a, i)));
+				}
+				check(s.get(ParticleStore.MASS, i) == out.store.get(ParticleStore.MASS, i), "masses are exact");
+				check(s.isAlive(i) == out.store.isAlive(i), "dead slots are kept");
+			}
+			System.out.printf("Frame %d (%s, %d bytes): position error %.2g, velocity error %.2g%n",
+					frame, key ? "key" : "delta", body.remaining(), posErr, velErr);
+			check(posErr <= codec.posError && velErr <= codec.velError, "errors are within the bounds");
+		}
+		check(keyframes == 3, "keyframes at frames 0 and 4, and on the kill at 6");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok)
+			throw new IllegalStateException("Failed: " + what);
+	}
+}
@@ -0,0 +1,133 @@
+package snapshot.io;
+
+import java.nio.ByteOrder;
+
+/**
+ * Constants and layout rules for the binary snapshot file format.
+ *
+ * A file is a file header followed by any number of frames, one per Snapshot.
+ * All values are little-endian.
+ *
+ * <pre>
+ * File header (16 bytes)
+ *   0  int   magic         0x504E534A ("JSNP")
+ *   4  int   version       currently 3. Version 2 lacks CHANNEL_ID and dead
+ *                          slots; version 1 also lacks flags, and is read as if
+ *                          every frame were a keyframe
+ *   8  int   header size   16
+ *  12  int   reserved      0
+ *
+ * Frame header (40 bytes)
+ *   0  int    magic         0x454D5246 ("FRME")
+ *   4  int    encoding      0 = raw columns, 1 = quantized (see SnapshotCodec)
+ *   8  long   frame size    bytes in the frame, header included
+ *  16  double t             simulation time in seconds
+ *  24  int    n             particle slots, including dead ones (id -1)
+ *  28  int    channels      bit set of CHANNEL_POS, CHANNEL_VEL, CHANNEL_MASS, CHANNEL_ID
+ *  32  int    element size  4 (float) or 8 (double); 8 for quantized frames
+ *  36  int    flags         FLAG_KEYFRAME if the frame decodes without earlier frames
+ *
+ * Frame body (raw encoding)
+ *   One column of n elements per stored component, in the order
+ *   px py pz (if CHANNEL_POS), vx vy vz (if CHANNEL_VEL), mass (if CHANNEL_MASS),
+ *   then particle ids as n ints (if CHANNEL_ID).
+ *   Each column is zero-padded to a multiple of 8 bytes.
+ *
+ * Frame body (quantized encoding), written by SnapshotCodec
+ *   0  int    block particles  particles per block
+ *   4  int    block count
+ *   8  per quantized column (px..vz present in channels): double origin, double step
+ *      per block: int compressed length, int raw length
+ *      the compressed blocks, back to back, then zero padding to 8 bytes
+ *   Each block is a deflate stream covering one particle range. Inflated, it
+ *   holds for every stored column in order, and every particle in the range,
+ *   an unsigned LEB128 varint: for px..vz the zigzag-encoded quantized value
+ *   (keyframes) or its difference from the previous frame (other frames); for
+ *   mass the raw IEEE bits (keyframes) or their XOR with the previous frame.
+ *   Keyframes with CHANNEL_ID then hold, per particle, the zigzag-encoded
+ *   difference between its id and its index; other frames keep the ids of
+ *   the previous frame, so a change of particle order, including a spawn or
+ *   kill, forces a keyframe.
+ *   A quantized value q decodes to origin + q*step.
+ * </pre>
+ *
+ * Because columns are stored contiguously and 8-byte aligned, a reader can
+ * memory-map a frame and bulk-copy or view each column directly.
+ */
+public final class SnapshotFormat {
+
+	public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	public static final int MAGIC = 0x504E534A;
+	public static final int VERSION = 3;
+	public static final int FILE_HEADER_BYTES = 16;
+
+	public static final int FRAME_MAGIC = 0x454D5246;
+	public static final int FRAME_HEADER_BYTES = 40;
+
+	public static final int ENCODING_RAW = 0;
+	public static final int ENCODING_QUANTIZED = 1;
+
+	public static final int FLAG_KEYFRAME = 1;
+
+	public static final int CHANNEL_POS = 1;
+	public static final int CHANNEL_VEL = 2;
+	public static final int CHANNEL_MASS = 4;
+	public static final int CHANNEL_ID = 8;
+	public static final int CHANNEL_ALL = CHANNEL_POS | CHANNEL_VEL | CHANNEL_MASS | CHANNEL_ID;
+
+	/** Size in bytes of one stored particle id. */
+	public static final int ID_BYTES = 4;
+
+	private SnapshotFormat() {}
+
+	/**
+	 * @return The number of columns stored for a channel set, the id column included.
+	 */
+	public static int columnCount(int channels) {
+		int c = valueColumnCount(channels);
+		if ((channels & CHANNEL_ID) != 0) c += 1;
+		return c;
+	}
+
+	/**
+	 * @return The number of position, velocity and mass columns stored for a channel set.
+	 */
+	public static int valueColumnCount(int channels) {
+		int c = 0;
+		if ((channels & CHANNEL_POS) != 0) c += 3;
+		if ((channels & CHANNEL_VEL) != 0) c += 3;
+		if ((channels & CHANNEL_MASS) != 0) c += 1;
+		return c;
+	}
+
+	/**
+	 * @return The size in bytes of one element of a column of a raw frame.
+	 */
+	public static int columnElementBytes(int channels, int elementBytes, int column) {
+		return column < valueColumnCount(channels) ? elementBytes : ID_BYTES;
+	}
+
+	/**
+	 * @return The offset of a column of a raw frame from the start of the frame body.
+	 */
+	public static long columnOffset(int n, int channels, int elementBytes, int column) {
+		int values = valueColumnCount(channels);
+		return Math.min(column, values) * columnBytes(n, elementBytes)
+				+ Math.max(0, column - values) * columnBytes(n, ID_BYTES);
+	}
+
+	/**
+	 * @return The size in bytes of one column, including padding.
+	 */
+	public static long columnBytes(int n, int elementBytes) {
+		return ((long) n * elementBytes + 7) & ~7L;
+	}
+
+	/**
+	 * @return The size in bytes of a raw frame, including its header.
+	 */
+	public static long rawFrameBytes(int n, int channels, int elementBytes) {
+		return FRAME_HEADER_BYTES + columnOffset(n, channels, elementBytes, columnCount(channels));
+	}
+}
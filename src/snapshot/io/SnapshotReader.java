@@ -0,0 +1,443 @@
+package snapshot.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import snapshot.ParticleStore;
+import snapshot.Snapshot;
+
+/**
+ * Reads files in the binary snapshot format described in {@link SnapshotFormat}.
+ *
+ * Opening a file reads its {@link TimelineIndex} if one was saved next to it,
+ * and otherwise scans the frame headers; frame headers are then read on
+ * first use. Frame data is memory-mapped on
+ * demand, one column at a time, so columns can either be viewed in place with
+ * {@link #mapColumn(int, int)} or bulk-copied into a Snapshot with
+ * {@link #read(int, Snapshot)}.
+ *
+ * Frames compressed by {@link SnapshotCodec} are decoded by read(), starting
+ * from the nearest keyframe when the previous frame was not the last one read.
+ * Reading is therefore stateful, and the read methods are synchronized.
+ */
+public class SnapshotReader implements Closeable {
+
+	/**
+	 * The header of one frame in the file.
+	 */
+	public static final class Frame {
+		public final long offset;
+		public final long size;
+		public final int encoding;
+		public final double t;
+		public final int n;
+		public final int channels;
+		public final int elementBytes;
+		public final boolean keyframe;
+
+		Frame(long offset, long size, int encoding, double t, int n, int channels, int elementBytes, boolean keyframe) {
+			this.offset = offset;
+			this.size = size;
+			this.encoding = encoding;
+			this.t = t;
+			this.n = n;
+			this.channels = channels;
+			this.elementBytes = elementBytes;
+			this.keyframe = keyframe;
+		}
+	}
+
+	private final FileChannel channel;
+	private int version;
+	private final TimelineIndex index;
+	private Frame[] frames = new Frame[0];
+	private final SnapshotCodec.Decoder decoder = SnapshotCodec.newDecoder();
+	private int decodedFrame = -1;
+
+	/**
+	 * Opens a file and loads or rebuilds its timeline index. Frames written after
+	 * the saved index are found by scanning. A truncated frame at the end of the
+	 * file, as left by an interrupted recording, is ignored.
+	 *
+	 * @param path The file to read.
+	 * @throws IOException If the file is not in the snapshot format.
+	 */
+	public SnapshotReader(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = readAt(0, SnapshotFormat.FILE_HEADER_BYTES);
+			if (header == null || header.getInt(0) != SnapshotFormat.MAGIC)
+				throw new IOException("Not a snapshot file: " + path);
+			version = header.getInt(4);
+			if (version < 1 || version > SnapshotFormat.VERSION)
+				throw new IOException("Unsupported snapshot file version " + header.getInt(4));
+			long offset = header.getInt(8);
+			long length = channel.size();
+
+			TimelineIndex saved = null;
+			Path indexPath = TimelineIndex.pathFor(path);
+			if (Files.exists(indexPath)) {
+				try {
+					saved = TimelineIndex.read(indexPath);
+				} catch (IOException e) {
+					System.err.println("Ignoring unreadable timeline index: " + e.getMessage());
+				}
+			}
+			if (saved != null && saved.size() > 0) {
+				// Trust the saved index only if its first and last frames are intact
+				// and match their entries; then scan past it. Anything else means the
+				// index belongs to another recording, so the whole file is scanned.
+				Frame last = indexedFrame(saved, saved.size()-1);
+				if (indexedFrame(saved, 0) != null && last != null && last.offset + last.size <= length) {
+					index = saved;
+					offset = last.offset + last.size;
+				} else {
+					index = new TimelineIndex();
+				}
+			} else {
+				index = new TimelineIndex();
+			}
+
+			Frame f;
+			while ((f = readFrameHeader(offset)) != null && offset + f.size <= length) {
+				cache(index.size(), f);
+				index.add(f.t, f.offset, f.keyframe);
+				offset += f.size;
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The header of the k-th frame of a saved index, or null if the
+	 *         file holds no such frame or its time or keyframe flag differ
+	 *         from the index entry.
+	 */
+	private Frame indexedFrame(TimelineIndex saved, int k) {
+		Frame f;
+		try {
+			f = readFrameHeader(saved.getOffset(k));
+		} catch (IOException e) {
+			return null;
+		}
+		if (f == null || f.t != saved.getTime(k) || f.keyframe != saved.isKeyframe(k))
+			return null;
+		return f;
+	}
+
+	/**
+	 * @return The number of complete frames in the file.
+	 */
+	public int getFrameCount() {
+		return index.size();
+	}
+
+	/**
+	 * @return The timeline index of the file.
+	 */
+	public TimelineIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @param k The frame number.
+	 * @return The header of frame k.
+	 * @throws IOException
+	 */
+	public synchronized Frame getFrame(int k) throws IOException {
+		Frame f = k < frames.length ? frames[k] : null;
+		if (f == null) {
+			f = readFrameHeader(index.getOffset(k));
+			if (f == null)
+				throw new IOException("Frame " + k + " is past the end of the file");
+			cache(k, f);
+		}
+		return f;
+	}
+
+	/**
+	 * Finds the frame showing the state at time t, in O(log n).
+	 *
+	 * @param t A simulation time in seconds.
+	 * @return The last frame whose time is not after t, 0 if t is before the
+	 *         first frame, or -1 if the file has no frames.
+	 */
+	public int seek(double t) {
+		return index.frameAt(t);
+	}
+
+	/**
+	 * Reads frame k into a new Snapshot.
+	 *
+	 * @param k The frame number.
+	 * @return A Snapshot holding the stored state. Channels not stored in the frame are zero.
+	 *         Frames stored as floats are read into single-precision Snapshots.
+	 * @throws IOException
+	 */
+	public synchronized Snapshot read(int k) throws IOException {
+		Frame f = getFrame(k);
+		boolean floats = f.encoding == SnapshotFormat.ENCODING_RAW && f.elementBytes == 4;
+		Snapshot ss = new Snapshot(f.n, 0, floats ? ParticleStore.Precision.FLOAT : ParticleStore.Precision.DOUBLE);
+		read(k, ss);
+		return ss;
+	}
+
+	/**
+	 * Reads frame k into an existing Snapshot with room for its particles, which
+	 * is resized to the frame's particle count. Channels not stored in the frame
+	 * are left untouched.
+	 *
+	 * @param k The frame number.
+	 * @param out The Snapshot to fill in.
+	 * @throws IOException
+	 */
+	public synchronized void read(int k, Snapshot out) throws IOException {
+		Frame f = getFrame(k);
+		ParticleStore s = out.store;
+		if (f.n > s.capacity)
+			throw new IllegalArgumentException("Frame has " + f.n + " particles, Snapshot has room for " + s.capacity);
+		if (f.encoding == SnapshotFormat.ENCODING_QUANTIZED) {
+			decodeTo(k);
+			decoder.output(out);
+			out.t = f.t;
+			return;
+		}
+		if (f.encoding != SnapshotFormat.ENCODING_RAW)
+			throw new IOException("Unsupported frame encoding " + f.encoding);
+		if (f.n != s.size)
+			s.resize(f.n);
+		int c = 0;
+		if ((f.channels & SnapshotFormat.CHANNEL_POS) != 0) {
+			copyColumn(k, c++, s, ParticleStore.PX);
+			copyColumn(k, c++, s, ParticleStore.PY);
+			copyColumn(k, c++, s, ParticleStore.PZ);
+			s.syncPosBuffer(0, s.size);
+		}
+		if ((f.channels & SnapshotFormat.CHANNEL_VEL) != 0) {
+			copyColumn(k, c++, s, ParticleStore.VX);
+			copyColumn(k, c++, s, ParticleStore.VY);
+			copyColumn(k, c++, s, ParticleStore.VZ);
+		}
+		if ((f.channels & SnapshotFormat.CHANNEL_MASS) != 0)
+			copyColumn(k, c++, s, ParticleStore.MASS);
+		if ((f.channels & SnapshotFormat.CHANNEL_ID) != 0)
+			copyIds(mapColumn(k, c++).asIntBuffer(), s);
+		out.t = f.t;
+	}
+
+	/**
+	 * Memory-maps one column of a raw frame. Column numbers follow the order
+	 * given in {@link SnapshotFormat}, counting only channels present in the frame.
+	 *
+	 * @param k The frame number.
+	 * @param column The column number within the frame.
+	 * @return A read-only buffer of n elements in file byte order. Ids are ints,
+	 *         other columns have the frame's element size.
+	 * @throws IOException
+	 */
+	public ByteBuffer mapColumn(int k, int column) throws IOException {
+		Frame f = getFrame(k);
+		if (f.encoding != SnapshotFormat.ENCODING_RAW)
+			throw new IOException("Only raw frames can be mapped by column");
+		if (column < 0 || column >= SnapshotFormat.columnCount(f.channels))
+			throw new IndexOutOfBoundsException("Frame has no column " + column);
+		long start = f.offset + SnapshotFormat.FRAME_HEADER_BYTES
+				+ SnapshotFormat.columnOffset(f.n, f.channels, f.elementBytes, column);
+		long bytes = (long) f.n * SnapshotFormat.columnElementBytes(f.channels, f.elementBytes, column);
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, bytes).order(SnapshotFormat.ORDER);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @return The index of the last keyframe at or before frame k.
+	 */
+	public int keyframeBefore(int k) {
+		return index.keyframeAtOrBefore(k);
+	}
+
+	/**
+	 * Brings the decoder state to frame k, decoding forward from the previous
+	 * frame if possible and from the nearest keyframe otherwise.
+	 */
+	private void decodeTo(int k) throws IOException {
+		if (decodedFrame == k)
+			return;
+		int start = (decodedFrame >= 0 && decodedFrame < k) ? decodedFrame + 1 : keyframeBefore(k);
+		if (start < k && keyframeBefore(k) > start)
+			start = keyframeBefore(k);
+		for (int j = start; j <= k; j++) {
+			Frame f = getFrame(j);
+			if (f.encoding != SnapshotFormat.ENCODING_QUANTIZED)
+				throw new IOException("Frame " + j + " is not quantized");
+			long bodyBytes = f.size - SnapshotFormat.FRAME_HEADER_BYTES;
+			if (bodyBytes > Integer.MAX_VALUE)
+				throw new IOException("Encoded frame " + j + " exceeds 2 GB");
+			ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY,
+					f.offset + SnapshotFormat.FRAME_HEADER_BYTES, bodyBytes);
+			decodedFrame = -1;
+			try {
+				decoder.decode(body, f.n, f.channels, f.keyframe);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt frame " + j, e);
+			}
+			decodedFrame = j;
+		}
+	}
+
+	private void copyColumn(int k, int column, ParticleStore s, int dstColumn) throws IOException {
+		ByteBuffer b = mapColumn(k, column);
+		Object dst = s.column(dstColumn);
+		if (getFrame(k).elementBytes == 8) {
+			DoubleBuffer db = b.asDoubleBuffer();
+			if (dst instanceof double[]) {
+				db.get((double[]) dst, 0, db.remaining());
+			} else {
+				for (int i = 0; db.hasRemaining(); i++)
+					s.set(dstColumn, i, db.get());
+			}
+		} else {
+			FloatBuffer fb = b.asFloatBuffer();
+			if (dst instanceof float[]) {
+				fb.get((float[]) dst, 0, fb.remaining());
+			} else {
+				for (int i = 0; fb.hasRemaining(); i++)
+					s.set(dstColumn, i, fb.get());
+			}
+		}
+		s.markChanged(dstColumn, 0, s.size);
+	}
+
+	/**
+	 * Stores particle ids, keeping the layout of the store if they match it.
+	 * The store must already have the frame's size.
+	 */
+	static void copyIds(IntBuffer ids, ParticleStore s) {
+		boolean same = true;
+		for (int i = 0; i < s.size && same; i++)
+			same = ids.get(i) == s.id[i];
+		if (!same) {
+			ids.get(s.id, 0, s.size);
+			s.markReordered();
+		}
+	}
+
+	private void cache(int k, Frame f) {
+		if (k >= frames.length)
+			frames = Arrays.copyOf(frames, Math.max(k+1, 2*frames.length));
+		frames[k] = f;
+	}
+
+	private Frame readFrameHeader(long offset) throws IOException {
+		ByteBuffer h = readAt(offset, SnapshotFormat.FRAME_HEADER_BYTES);
+		if (h == null)
+			return null;
+		if (h.getInt(0) != SnapshotFormat.FRAME_MAGIC)
+			throw new IOException("Bad frame header at offset " + offset);
+		// Version 1 had no flags; all of its frames are raw and therefore keyframes.
+		boolean key = version < 2 || (h.getInt(36) & SnapshotFormat.FLAG_KEYFRAME) != 0;
+		int channels = h.getInt(28);
+		// Ids were added in version 3; before that the bit had no meaning and no column.
+		if (version < 3 && (channels & SnapshotFormat.CHANNEL_ID) != 0)
+			throw new IOException("Version " + version + " frame at offset " + offset + " claims particle ids");
+		return new Frame(offset, h.getLong(8), h.getInt(4), h.getDouble(16), h.getInt(24), channels, h.getInt(32), key);
+	}
+
+	/**
+	 * Reads len bytes at an offset, or returns null if the file ends first.
+	 */
+	private ByteBuffer readAt(long offset, int len) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(len).order(SnapshotFormat.ORDER);
+		while (b.hasRemaining()) {
+			if (channel.read(b, offset + b.position()) < 0)
+				return null;
+		}
+		b.flip();
+		return b;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path dir = Files.createTempDirectory("reader");
+		Path withIds = dir.resolve("ids.snap"), withoutIds = dir.resolve("plain.snap");
+		Snapshot ss = new Snapshot(8, 0.5);
+		ss.store.kill(3);
+		try (SnapshotWriter w = new SnapshotWriter(withIds)) {
+			w.write(ss);
+		}
+		try (SnapshotWriter w = new SnapshotWriter(withoutIds, SnapshotFormat.CHANNEL_POS, 8)) {
+			w.write(ss);
+		}
+		try (SnapshotReader r = new SnapshotReader(withIds)) {
+			check(!r.read(0).store.isAlive(3), "a version " + SnapshotFormat.VERSION + " file keeps ids");
+		}
+
+		// A new recording drops the old index, and an index that does not match
+		// the frames in the file is replaced by a scan.
+		Path stale = dir.resolve("stale.idx");
+		Files.copy(TimelineIndex.pathFor(withIds), stale);
+		try (SnapshotWriter w = new SnapshotWriter(withIds)) {
+			check(!Files.exists(TimelineIndex.pathFor(withIds)), "a new recording deletes the old index");
+			ss.t = 2.5;
+			w.write(ss);
+		}
+		Files.move(stale, TimelineIndex.pathFor(withIds), StandardCopyOption.REPLACE_EXISTING);
+		try (SnapshotReader r = new SnapshotReader(withIds)) {
+			check(r.getFrameCount() == 1 && r.getIndex().getTime(0) == 2.5, "a stale index is rebuilt");
+		}
+
+		// Files from before ids existed are read, unless a frame claims ids.
+		setVersion(withoutIds, 2);
+		try (SnapshotReader r = new SnapshotReader(withoutIds)) {
+			check(r.read(0).size() == 8, "a version 2 file without ids is read");
+		}
+		setVersion(withIds, 2);
+		try (SnapshotReader r = new SnapshotReader(withIds)) {
+			r.read(0);
+			check(false, "a version 2 frame with ids is refused");
+		} catch (IOException e) {
+			System.out.println("Version 2 frame with ids: " + e.getMessage());
+		}
+		setVersion(withIds, SnapshotFormat.VERSION + 1);
+		try {
+			new SnapshotReader(withIds).close();
+			check(false, "a newer version is refused");
+		} catch (IOException e) {
+			System.out.println("Newer version: " + e.getMessage());
+		}
+
+		for (Path p : new Path[] {withIds, withoutIds}) {
+			Files.delete(p);
+			Files.deleteIfExists(TimelineIndex.pathFor(p));
+		}
+		Files.delete(dir);
+	}
+
+	private static void setVersion(Path path, int version) throws IOException {
+		try (FileChannel c = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			ByteBuffer b = ByteBuffer.allocate(4).order(SnapshotFormat.ORDER);
+			b.putInt(0, version);
+			c.write(b, 4);
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok)
+			throw new IllegalStateException("Failed: " + what);
+	}
+}
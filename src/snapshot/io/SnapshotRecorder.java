@@ -0,0 +1,364 @@
+package snapshot.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import snapshot.ParticleStore;
+import snapshot.Snapshot;
+import snapshot.SnapshotArena;
+
+/**
+ * Records Snapshots to a {@link SnapshotWriter} on a dedicated I/O thread so
+ * the simulation loop never waits on the disk.
+ *
+ * {@link #record(Snapshot)} copies the Snapshot into a slot of a preallocated
+ * {@link SnapshotArena} and hands it to the I/O thread through a bounded
+ * lock-free queue. The I/O thread writes queued frames in batches and returns
+ * the slots to the arena. What happens when every slot is in use is decided
+ * by the {@link Backpressure} policy.
+ *
+ * record() must only be called from one thread at a time.
+ */
+public class SnapshotRecorder implements Closeable {
+
+	/**
+	 * What record() does when the I/O thread has fallen behind and the queue is full.
+	 */
+	public enum Backpressure {
+		/** Wait until the I/O thread frees a slot. No frames are lost. */
+		BLOCK,
+		/** Drop the frame. */
+		DROP,
+		/**
+		 * Drop the frame and from then on record only every second, fourth,
+		 * ... frame, going back to full rate once the queue has drained.
+		 */
+		DOWNSAMPLE,
+	}
+
+	private static final long IDLE_PARK_NANOS = 200000;
+
+	private final SnapshotWriter writer;
+	private final SnapshotArena arena;
+	private final SpscQueue<SnapshotArena.Handle> queue;
+	private final Backpressure policy;
+	private final int batchSize;
+	private final int syncInterval;
+	private final Thread ioThread;
+
+	private volatile boolean closed;
+	/** The first error of the I/O thread, after which frames are released unwritten. */
+	private volatile Throwable failure;
+
+	// Producer-side state for DOWNSAMPLE.
+	private int stride = 1;
+	private long frameCounter;
+
+	private final AtomicLong framesWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * Starts a recorder and its I/O thread.
+	 *
+	 * @param writer The destination. The recorder takes ownership and closes it.
+	 * @param nParticles The largest particle count (ParticleStore.size) of any recorded Snapshot.
+	 * @param capacity The number of frames that may be queued at once.
+	 * @param policy What to do when the queue is full.
+	 * @param batchSize The maximum number of frames written per wake-up of the I/O thread.
+	 * @param syncInterval Force data to disk after every this many frames; 0 to sync only on close.
+	 */
+	public SnapshotRecorder(SnapshotWriter writer, int nParticles, int capacity, Backpressure policy,
+			int batchSize, int syncInterval) {
+		this(writer, nParticles, ParticleStore.Precision.DOUBLE, capacity, policy, batchSize, syncInterval);
+	}
+
+	/**
+	 * Starts a recorder and its I/O thread, queueing frames at a given precision.
+	 *
+	 * @param writer The destination. The recorder takes ownership and closes it.
+	 * @param nParticles The largest particle count (ParticleStore.size) of any recorded Snapshot.
+	 * @param precision The precision of queued copies; match the recorded scene to avoid conversion.
+	 * @param capacity The number of frames that may be queued at once.
+	 * @param policy What to do when the queue is full.
+	 * @param batchSize The maximum number of frames written per wake-up of the I/O thread.
+	 * @param syncInterval Force data to disk after every this many frames; 0 to sync only on close.
+	 */
+	public SnapshotRecorder(SnapshotWriter writer, int nParticles, ParticleStore.Precision precision,
+			int capacity, Backpressure policy, int batchSize, int syncInterval) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be positive");
+		this.writer = writer;
+		this.arena = new SnapshotArena(capacity, nParticles, precision);
+		this.queue = new SpscQueue<SnapshotArena.Handle>(capacity);
+		this.policy = policy;
+		this.batchSize = batchSize;
+		this.syncInterval = syncInterval;
+		ioThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "snapshot-recorder");
+		ioThread.setDaemon(true);
+		ioThread.start();
+	}
+
+	/**
+	 * Queues a copy of a Snapshot for writing.
+	 *
+	 * @param ss The Snapshot to record. It may be modified as soon as this returns.
+	 * @return true if the frame was queued, false if it was dropped or skipped.
+	 * @throws IOException If the I/O thread has failed.
+	 */
+	public boolean record(Snapshot ss) throws IOException {
+		checkFailure();
+		if (closed)
+			throw new IllegalStateException("Recorder is closed");
+
+		if (policy == Backpressure.DOWNSAMPLE) {
+			if (stride > 1 && queue.size() <= arena.getCapacity() / 4)
+				stride = 1;
+			if (frameCounter++ % stride != 0) {
+				skipped.incrementAndGet();
+				return false;
+			}
+		}
+
+		SnapshotArena.Handle h = arena.tryAcquireCopyOf(ss);
+		if (h == null) {
+			switch (policy) {
+			case BLOCK:
+				try {
+					h = arena.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					dropped.incrementAndGet();
+					return false;
+				}
+				try {
+					checkFailure();
+					h.snapshot().copyFrom(ss);
+				} catch (IOException | RuntimeException | Error e) {
+					h.release();
+					throw e;
+				}
+				break;
+			case DOWNSAMPLE:
+				stride *= 2;
+				dropped.incrementAndGet();
+				return false;
+			case DROP:
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		// The arena holds at most as many frames as the queue, so this cannot fail.
+		queue.offer(h);
+		LockSupport.unpark(ioThread);
+		return true;
+	}
+
+	/**
+	 * Stops accepting frames, waits for queued frames to be written, syncs and
+	 * closes the writer.
+	 *
+	 * @throws IOException If any write failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		LockSupport.unpark(ioThread);
+		boolean interrupted = false;
+		while (ioThread.isAlive()) {
+			try {
+				ioThread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		try {
+			if (failure == null)
+				writer.sync(true);
+		} finally {
+			writer.close();
+		}
+		checkFailure();
+	}
+
+	/**
+	 * @return The number of frames waiting to be written.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getFramesWritten() {
+		return framesWritten.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return The average write throughput since the recorder started, in bytes per second.
+	 */
+	public double getBytesPerSecond() {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds > 0 ? bytesWritten.get() / seconds : 0;
+	}
+
+	/**
+	 * @return The number of frames dropped because the queue was full.
+	 */
+	public long getDroppedFrames() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of frames skipped by the DOWNSAMPLE policy while throttled.
+	 */
+	public long getSkippedFrames() {
+		return skipped.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SnapshotRecorder[queue %d/%d, %d written, %.1f MB/s, %d dropped, %d skipped]",
+				getQueueDepth(), arena.getCapacity(), getFramesWritten(), getBytesPerSecond() / 1e6,
+				getDroppedFrames(), getSkippedFrames());
+	}
+
+	/**
+	 * Throws the failure of the I/O thread, if any, wrapped so the caller's
+	 * stack is in the trace.
+	 */
+	private void checkFailure() throws IOException {
+		Throwable e = failure;
+		if (e != null)
+			throw new IOException("Snapshot recording failed", e);
+	}
+
+	private void fail(Throwable e) {
+		if (failure == null)
+			failure = e;
+	}
+
+	private void drainLoop() {
+		try {
+			drain();
+		} catch (Throwable e) {
+			fail(e);
+			// Give back every queued slot so a producer blocked in acquire() wakes up.
+			SnapshotArena.Handle h;
+			while ((h = queue.poll()) != null)
+				h.release();
+		}
+	}
+
+	private void drain() {
+		long sinceSync = 0;
+		while (true) {
+			boolean wasClosed = closed;
+			int batch = 0;
+			SnapshotArena.Handle h;
+			while (batch < batchSize && (h = queue.poll()) != null) {
+				try {
+					if (failure == null) {
+						long before = writer.getPosition();
+						writer.write(h.snapshot());
+						bytesWritten.addAndGet(writer.getPosition() - before);
+						framesWritten.incrementAndGet();
+						sinceSync++;
+					}
+				} catch (Throwable e) {
+					fail(e);
+				} finally {
+					h.release();
+				}
+				batch++;
+			}
+			if (failure == null && syncInterval > 0 && sinceSync >= syncInterval) {
+				try {
+					writer.sync(false);
+				} catch (Throwable e) {
+					fail(e);
+				}
+				sinceSync = 0;
+			}
+			if (batch == 0) {
+				if (wasClosed)
+					return;
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path dir = Files.createTempDirectory("recorder");
+		Snapshot ss = new Snapshot(10, 1.0);
+
+		// A frame whose time goes backwards fails on the I/O thread; BLOCK must not wait forever.
+		SnapshotRecorder r = new SnapshotRecorder(new SnapshotWriter(dir.resolve("a.snap")), 10, 1, Backpressure.BLOCK, 1, 0);
+		r.record(ss);
+		ss.t = 0;
+		try {
+			for (int i = 0; i < 100; i++)
+				r.record(ss);
+			check(false, "a failed write is reported by record()");
+		} catch (IOException e) {
+			System.out.println("record() after a failed write: " + e.getCause());
+		}
+		expectFailedClose(r);
+
+		// An I/O error.
+		SnapshotWriter closedWriter = new SnapshotWriter(dir.resolve("b.snap"));
+		closedWriter.close();
+		r = new SnapshotRecorder(closedWriter, 10, 2, Backpressure.DROP, 1, 0);
+		r.record(ss);
+		expectFailedClose(r);
+
+		// A frame too large for the arena is refused without losing its slot.
+		r = new SnapshotRecorder(new SnapshotWriter(dir.resolve("c.snap")), 10, 1, Backpressure.BLOCK, 1, 0);
+		try {
+			r.record(new Snapshot(20, 0));
+			check(false, "an oversized frame is refused");
+		} catch (IllegalArgumentException e) {
+			System.out.println("Oversized frame: " + e.getMessage());
+		}
+		check(r.record(ss), "the slot of a refused frame is reused");
+		r.close();
+		check(r.getFramesWritten() == 1, "the recorder still writes after a refused frame");
+
+		try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+			for (Path f : (Iterable<Path>) files::iterator)
+				Files.delete(f);
+		}
+		Files.delete(dir);
+	}
+
+	private static void expectFailedClose(SnapshotRecorder r) {
+		try {
+			r.close();
+			check(false, "close() reports a failed write");
+		} catch (IOException e) {
+			System.out.println("close() after a failed write: " + e.getCause());
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok)
+			throw new IllegalStateException("Failed: " + what);
+	}
+}
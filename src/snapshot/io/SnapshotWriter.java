@@ -0,0 +1,247 @@
+package snapshot.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import snapshot.ParticleStore;
+import snapshot.Snapshot;
+
+/**
+ * Appends Snapshots to a file in the binary snapshot format described in
+ * {@link SnapshotFormat}. Columns are streamed through one reusable direct
+ * buffer, so writing a frame does not allocate per particle.
+ *
+ * A writer created with a {@link SnapshotCodec} stores quantized, compressed
+ * frames instead of raw columns.
+ *
+ * Every frame is also entered in a {@link TimelineIndex}, which is saved next
+ * to the recording on close (and on {@link #writeIndex()}).
+ */
+public class SnapshotWriter implements Closeable {
+	private static final int CHUNK_BYTES = 1 << 20;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final TimelineIndex index = new TimelineIndex();
+	private final int channels;
+	private final int elementBytes;
+	private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(SnapshotFormat.ORDER);
+	private final SnapshotCodec.Encoder encoder;
+	private long position;
+	private boolean lastKeyframe;
+
+	/**
+	 * Creates a new file, replacing any existing one, that stores every channel in double precision.
+	 *
+	 * @param path The file to write.
+	 * @throws IOException
+	 */
+	public SnapshotWriter(Path path) throws IOException {
+		this(path, SnapshotFormat.CHANNEL_ALL, 8);
+	}
+
+	/**
+	 * Creates a new file, replacing any existing one.
+	 *
+	 * @param path The file to write.
+	 * @param channels The channels to store, as a bit set of SnapshotFormat.CHANNEL_* values.
+	 * @param elementBytes 8 to store doubles, 4 to store floats.
+	 * @throws IOException
+	 */
+	public SnapshotWriter(Path path, int channels, int elementBytes) throws IOException {
+		this(path, channels, elementBytes, null);
+	}
+
+	/**
+	 * Creates a new file, replacing any existing one, that stores every channel
+	 * compressed with a codec.
+	 *
+	 * @param path The file to write.
+	 * @param codec The codec used to encode frames.
+	 * @throws IOException
+	 */
+	public SnapshotWriter(Path path, SnapshotCodec codec) throws IOException {
+		this(path, SnapshotFormat.CHANNEL_ALL, 8, codec);
+	}
+
+	private SnapshotWriter(Path path, int channels, int elementBytes, SnapshotCodec codec) throws IOException {
+		if (elementBytes != 4 && elementBytes != 8)
+			throw new IllegalArgumentException("Element size must be 4 or 8 bytes");
+		this.channels = channels & SnapshotFormat.CHANNEL_ALL;
+		this.elementBytes = elementBytes;
+		this.encoder = codec == null ? null : codec.newEncoder();
+		this.path = path;
+		// An index left by an earlier recording would describe the wrong frames.
+		Files.deleteIfExists(TimelineIndex.pathFor(path));
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		chunk.putInt(SnapshotFormat.MAGIC);
+		chunk.putInt(SnapshotFormat.VERSION);
+		chunk.putInt(SnapshotFormat.FILE_HEADER_BYTES);
+		chunk.putInt(0);
+		flushChunk();
+	}
+
+	/**
+	 * Appends one frame.
+	 *
+	 * @param ss The Snapshot to write. Its time must not be less than the previous frame's.
+	 * @return The file offset at which the frame starts.
+	 * @throws IOException
+	 */
+	public long write(Snapshot ss) throws IOException {
+		ParticleStore s = ss.store;
+		long start = position;
+		if (index.size() > 0 && ss.t < index.getTime(index.size()-1))
+			throw new IllegalArgumentException("Frame times must not decrease");
+		if (encoder != null) {
+			ByteBuffer body = encoder.encode(ss, channels);
+			lastKeyframe = encoder.wasKeyframe();
+			putFrameHeader(ss, SnapshotFormat.ENCODING_QUANTIZED, SnapshotFormat.FRAME_HEADER_BYTES + body.remaining());
+			flushChunk();
+			while (body.hasRemaining())
+				position += channel.write(body, position);
+			index.add(ss.t, start, lastKeyframe);
+			return start;
+		}
+		lastKeyframe = true;
+		putFrameHeader(ss, SnapshotFormat.ENCODING_RAW, SnapshotFormat.rawFrameBytes(s.size, channels, elementBytes));
+		if ((channels & SnapshotFormat.CHANNEL_POS) != 0) {
+			putColumn(s, ParticleStore.PX);
+			putColumn(s, ParticleStore.PY);
+			putColumn(s, ParticleStore.PZ);
+		}
+		if ((channels & SnapshotFormat.CHANNEL_VEL) != 0) {
+			putColumn(s, ParticleStore.VX);
+			putColumn(s, ParticleStore.VY);
+			putColumn(s, ParticleStore.VZ);
+		}
+		if ((channels & SnapshotFormat.CHANNEL_MASS) != 0)
+			putColumn(s, ParticleStore.MASS);
+		if ((channels & SnapshotFormat.CHANNEL_ID) != 0)
+			putIds(s);
+		flushChunk();
+		index.add(ss.t, start, true);
+		return start;
+	}
+
+	/**
+	 * @return Whether the last frame written was a keyframe, which can be decoded on its own.
+	 */
+	public boolean wasKeyframe() {
+		return lastKeyframe;
+	}
+
+	/**
+	 * @return The number of bytes written so far, which is also the offset of the next frame.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Forces written data to the storage device.
+	 *
+	 * @param metaData Whether file metadata must be written as well.
+	 * @throws IOException
+	 */
+	public void sync(boolean metaData) throws IOException {
+		channel.force(metaData);
+	}
+
+	/**
+	 * @return The index of the frames written so far.
+	 */
+	public TimelineIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Saves the timeline index next to the recording. Long recordings can call
+	 * this now and then so an interrupted run still has most of its index.
+	 *
+	 * @throws IOException
+	 */
+	public void writeIndex() throws IOException {
+		index.write(TimelineIndex.pathFor(path));
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			writeIndex();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void putFrameHeader(Snapshot ss, int encoding, long frameBytes) {
+		chunk.putInt(SnapshotFormat.FRAME_MAGIC);
+		chunk.putInt(encoding);
+		chunk.putLong(frameBytes);
+		chunk.putDouble(ss.t);
+		chunk.putInt(ss.store.size);
+		chunk.putInt(channels);
+		chunk.putInt(encoding == SnapshotFormat.ENCODING_RAW ? elementBytes : 8);
+		chunk.putInt(lastKeyframe ? SnapshotFormat.FLAG_KEYFRAME : 0);
+	}
+
+	private void putColumn(ParticleStore s, int column) throws IOException {
+		Object a = s.column(column);
+		int n = s.size;
+		int i = 0;
+		while (i < n) {
+			if (chunk.remaining() < elementBytes)
+				flushChunk();
+			int count = Math.min(n - i, chunk.remaining() / elementBytes);
+			if (elementBytes == 8 && a instanceof double[]) {
+				chunk.asDoubleBuffer().put((double[]) a, i, count);
+				chunk.position(chunk.position() + 8*count);
+			} else if (elementBytes == 4 && a instanceof float[]) {
+				chunk.asFloatBuffer().put((float[]) a, i, count);
+				chunk.position(chunk.position() + 4*count);
+			} else if (elementBytes == 8) {
+				for (int j = i; j < i + count; j++)
+					chunk.putDouble(s.get(column, j));
+			} else {
+				for (int j = i; j < i + count; j++)
+					chunk.putFloat((float) s.get(column, j));
+			}
+			i += count;
+		}
+		long padding = SnapshotFormat.columnBytes(n, elementBytes) - (long) n * elementBytes;
+		if (chunk.remaining() < padding)
+			flushChunk();
+		for (long p = 0; p < padding; p++)
+			chunk.put((byte) 0);
+	}
+
+	private void putIds(ParticleStore s) throws IOException {
+		int n = s.size;
+		int i = 0;
+		while (i < n) {
+			if (chunk.remaining() < SnapshotFormat.ID_BYTES)
+				flushChunk();
+			int count = Math.min(n - i, chunk.remaining() / SnapshotFormat.ID_BYTES);
+			chunk.asIntBuffer().put(s.id, i, count);
+			chunk.position(chunk.position() + SnapshotFormat.ID_BYTES*count);
+			i += count;
+		}
+		if (chunk.remaining() < 8)
+			flushChunk();
+		for (long p = (long) n * SnapshotFormat.ID_BYTES; p < SnapshotFormat.columnBytes(n, SnapshotFormat.ID_BYTES); p++)
+			chunk.put((byte) 0);
+	}
+
+	private void flushChunk() throws IOException {
+		chunk.flip();
+		while (chunk.hasRemaining())
+			position += channel.write(chunk, position);
+		chunk.clear();
+	}
+}
@@ -0,0 +1,59 @@
+package snapshot.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer
+ * thread. Capacity is rounded up to a power of two.
+ */
+final class SpscQueue<T> {
+	private final Object[] items;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong(); // next slot to read
+	private final AtomicLong tail = new AtomicLong(); // next slot to write
+
+	SpscQueue(int capacity) {
+		int c = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		items = new Object[c];
+		mask = c - 1;
+	}
+
+	/**
+	 * Called by the producer only.
+	 *
+	 * @return false if the queue is full.
+	 */
+	boolean offer(T x) {
+		long t = tail.get();
+		if (t - head.get() == items.length)
+			return false;
+		items[(int) t & mask] = x;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Called by the consumer only.
+	 *
+	 * @return The oldest element, or null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	T poll() {
+		long h = head.get();
+		if (h == tail.get())
+			return null;
+		int i = (int) h & mask;
+		T x = (T) items[i];
+		items[i] = null;
+		head.lazySet(h + 1);
+		return x;
+	}
+
+	int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	int capacity() {
+		return items.length;
+	}
+}
@@ -0,0 +1,206 @@
+package snapshot.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Maps simulation time to frames of a recording, so a player can seek to
+ * time t with a binary search and start decoding at the nearest keyframe.
+ *
+ * {@link SnapshotWriter} builds an index as it writes and stores it next to
+ * the recording, in a file named by {@link #pathFor(Path)}. Frame times must
+ * not decrease. The index file is little-endian:
+ *
+ * <pre>
+ *   0  int  magic    0x5844494A ("JIDX")
+ *   4  int  version  1
+ *   8  int  count    number of frames
+ *  12  int  reserved 0
+ *  16  double[count] frame times
+ *      long[count]   frame offsets in the recording
+ *      int[count]    frame flags (SnapshotFormat.FLAG_KEYFRAME)
+ * </pre>
+ */
+public class TimelineIndex {
+	public static final int MAGIC = 0x5844494A;
+	public static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+
+	private int count;
+	private double[] times = new double[64];
+	private long[] offsets = new long[64];
+	private int[] flags = new int[64];
+	/** Frame numbers of keyframes, in increasing order. */
+	private int[] keyframes = new int[16];
+	private int keyCount;
+
+	public TimelineIndex() {}
+
+	/**
+	 * @param recording The path of a recording.
+	 * @return The path of the index file stored next to it.
+	 */
+	public static Path pathFor(Path recording) {
+		return recording.resolveSibling(recording.getFileName() + ".idx");
+	}
+
+	/**
+	 * Appends a frame.
+	 *
+	 * @param t The frame time. Must not be less than the previous frame's.
+	 * @param offset The file offset of the frame.
+	 * @param keyframe Whether the frame decodes on its own.
+	 */
+	public void add(double t, long offset, boolean keyframe) {
+		if (count > 0 && t < times[count-1])
+			throw new IllegalArgumentException("Frame times must not decrease: " + t + " < " + times[count-1]);
+		if (count == times.length) {
+			times = Arrays.copyOf(times, 2*count);
+			offsets = Arrays.copyOf(offsets, 2*count);
+			flags = Arrays.copyOf(flags, 2*count);
+		}
+		times[count] = t;
+		offsets[count] = offset;
+		flags[count] = keyframe ? SnapshotFormat.FLAG_KEYFRAME : 0;
+		if (keyframe) {
+			if (keyCount == keyframes.length)
+				keyframes = Arrays.copyOf(keyframes, 2*keyCount);
+			keyframes[keyCount++] = count;
+		}
+		count++;
+	}
+
+	/**
+	 * @return The number of frames in the index.
+	 */
+	public int size() {
+		return count;
+	}
+
+	public double getTime(int k) {
+		checkIndex(k);
+		return times[k];
+	}
+
+	public long getOffset(int k) {
+		checkIndex(k);
+		return offsets[k];
+	}
+
+	public boolean isKeyframe(int k) {
+		checkIndex(k);
+		return (flags[k] & SnapshotFormat.FLAG_KEYFRAME) != 0;
+	}
+
+	/**
+	 * Finds the frame showing the state at time t, that is the last frame whose
+	 * time is not after t. Times before the first frame map to frame 0.
+	 *
+	 * @param t A simulation time in seconds.
+	 * @return A frame number, or -1 if the index is empty.
+	 */
+	public int frameAt(double t) {
+		if (count == 0)
+			return -1;
+		int lo = 0, hi = count - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (times[mid] <= t)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * @param k A frame number.
+	 * @return The last keyframe at or before frame k, or 0 if there is none.
+	 */
+	public int keyframeAtOrBefore(int k) {
+		checkIndex(k);
+		int i = Arrays.binarySearch(keyframes, 0, keyCount, k);
+		if (i >= 0)
+			return k;
+		i = -i - 2;
+		return i >= 0 ? keyframes[i] : 0;
+	}
+
+	/**
+	 * Writes the index to a file, replacing it atomically where the file system allows.
+	 *
+	 * @param path The index file.
+	 * @throws IOException
+	 */
+	public void write(Path path) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES + 20*count).order(SnapshotFormat.ORDER);
+		b.putInt(MAGIC);
+		b.putInt(VERSION);
+		b.putInt(count);
+		b.putInt(0);
+		b.asDoubleBuffer().put(times, 0, count);
+		b.position(b.position() + 8*count);
+		b.asLongBuffer().put(offsets, 0, count);
+		b.position(b.position() + 8*count);
+		b.asIntBuffer().put(flags, 0, count);
+		b.position(b.position() + 4*count);
+		b.flip();
+
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (b.hasRemaining())
+				ch.write(b);
+		}
+		try {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads an index file.
+	 *
+	 * @param path The index file.
+	 * @return The index.
+	 * @throws IOException If the file is missing or not an index.
+	 */
+	public static TimelineIndex read(Path path) throws IOException {
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(SnapshotFormat.ORDER);
+			if (b.remaining() < HEADER_BYTES || b.getInt(0) != MAGIC)
+				throw new IOException("Not a timeline index: " + path);
+			if (b.getInt(4) != VERSION)
+				throw new IOException("Unsupported timeline index version " + b.getInt(4));
+			int n = b.getInt(8);
+			if (n < 0 || b.remaining() < HEADER_BYTES + 20L*n)
+				throw new IOException("Truncated timeline index: " + path);
+			double[] t = new double[n];
+			long[] off = new long[n];
+			int[] fl = new int[n];
+			b.position(HEADER_BYTES);
+			b.asDoubleBuffer().get(t);
+			b.position(HEADER_BYTES + 8*n);
+			b.asLongBuffer().get(off);
+			b.position(HEADER_BYTES + 16*n);
+			b.asIntBuffer().get(fl);
+
+			TimelineIndex index = new TimelineIndex();
+			for (int i = 0; i < n; i++)
+				index.add(t[i], off[i], (fl[i] & SnapshotFormat.FLAG_KEYFRAME) != 0);
+			return index;
+		}
+	}
+
+	private void checkIndex(int k) {
+		if (k < 0 || k >= count)
+			throw new IndexOutOfBoundsException("Frame " + k + " of " + count);
+	}
+}
@@ -28,6 +28,11 @@ import static org.lwjgl.glfw.GLFW.glfwWindowShouldClose;
 import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL11.glClearColor;
 import static org.lwjgl.system.MemoryUtil.NULL;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import javax_.vecmath.Vector2f;
 
 import org.lwjgl.Version;
@@ -41,6 +46,10 @@ import org.lwjgl.opengl.GL30;
 import render.PointRenderer;
 import sim.VelocitySimulator;
 import snapshot.Snapshot;
+import snapshot.SnapshotInterpolator;
+import snapshot.io.PlaybackSource;
+import snapshot.io.PointCloudReader;
+import snapshot.io.SnapshotReader;
 import camera.Camera;
 import camera.PerspectiveCamera;
 
@@ -58,6 +67,15 @@ public class Viewer {
 	private Snapshot currentSnapshot;
 	private long t0;
 	
+	// Set when playing back a recording instead of simulating.
+	private Path recording;
+	// Set when simulating from a loaded point cloud.
+	private Path pointCloud;
+	private PlaybackSource playback;
+	private final SnapshotInterpolator interpolator = new SnapshotInterpolator(SnapshotInterpolator.Mode.HERMITE);
+	private Snapshot interpolated;
+	private final Snapshot[] bracket = new Snapshot[2];
+	
 	public void run() {
 		System.out.println("Hello LWJGL " + Version.getVersion() + "!");
 
@@ -69,14 +87,26 @@ public class Viewer {
 			glfwFreeCallbacks(window);
 			glfwDestroyWindow(window);
 
+		} catch (IOException e) {
+			System.err.println(e);
 		} finally {
+			// Stop the read-ahead thread and close the recording however the loop ended
+			if (playback != null) {
+				System.out.println(playback);
+				try {
+					playback.close();
+				} catch (IOException e) {
+					System.err.println(e);
+				}
+			}
+			
 			// Terminate GLFW and free the error callback
 			glfwTerminate();
 			glfwSetErrorCallback(null).free();
 		}
 	}
 
-	private void init() {
+	private void init() throws IOException {
 		// Setup an error callback. The default implementation
 		// will print the error message in System.err.
 		GLFWErrorCallback.createPrint(System.err).set();
@@ -164,17 +194,29 @@ public class Viewer {
 		glfwShowWindow(window);
 		
 		t0 = System.currentTimeMillis();
-		currentSnapshot = new Snapshot(5, 0);
-		for (int i = 0; i < 5; i++) {
-			currentSnapshot.part[i].pos.set(.5*i, .5*i, .5*i);
-			currentSnapshot.part[i].vel.set(-.5*i, -.5*i, -.5*i);
-		}
 		renderer = new PointRenderer();
+		if (recording != null) {
+			// Keep about 64 frames of 1M particles and decode 8 frames ahead.
+			playback = new PlaybackSource(new SnapshotReader(recording), 8, 64L << 26);
+			currentSnapshot = playback.getFrame(0);
+			return;
+		}
+		if (pointCloud != null) {
+			currentSnapshot = new PointCloudReader().read(pointCloud);
+		} else {
+			currentSnapshot = new Snapshot(5, 0);
+			for (int i = 0; i < 5; i++) {
+				currentSnapshot.store.setPos(i, .5*i, .5*i, .5*i);
+				currentSnapshot.store.setVel(i, -.5*i, -.5*i, -.5*i);
+			}
+		}
+		currentSnapshot.store.enablePosBuffer();
 		simulator = new VelocitySimulator();
+		simulator.reset(currentSnapshot);
 		
 	}
 
-	private void loop() {
+	private void loop() throws IOException {
 		// Set the clear color
 		glClearColor(1.0f, 0.0f, 0.0f, 0.0f);
 
@@ -182,16 +224,52 @@ public class Viewer {
 		// the window or has pressed the ESCAPE key.
 		while ( !glfwWindowShouldClose(window) ) {
 			renderer.render(currentSnapshot, camera, window);
-			currentSnapshot = simulator.simulate(currentSnapshot, (System.currentTimeMillis()-t0)/1000f);
+			double t = (System.currentTimeMillis()-t0)/1000f;
+			if (playback != null)
+				currentSnapshot = playbackFrame(t);
+			else
+				currentSnapshot = simulator.step(t);
 			glfwPollEvents();
 		}
 	}
 	
+	/**
+	 * Builds the state at time t from the two recorded frames around it, so
+	 * playback stays smooth when frames were recorded at a low rate.
+	 */
+	private Snapshot playbackFrame(double t) throws IOException {
+		playback.getBracket(t, bracket);
+		Snapshot s0 = bracket[0], s1 = bracket[1];
+		if (interpolated == null || interpolated.store.capacity < s0.size()) {
+			interpolated = new Snapshot(s0.size(), t);
+			interpolated.store.enablePosBuffer();
+		}
+		interpolator.set(s0, s1, t);
+		return interpolator.interpolate(interpolated);
+	}
+	
 	public Viewer() {
 		// TODO Auto-generated constructor stub
 	}
+	
+	/**
+	 * Creates a Viewer that plays back a recording, or simulates from a point
+	 * cloud loaded as initial conditions.
+	 * 
+	 * @param file A file written by snapshot.io.SnapshotWriter, or a point
+	 *             cloud in a format known to snapshot.io.PointCloudReader.
+	 */
+	public Viewer(Path file) {
+		if (PointCloudReader.Format.find(file) != null)
+			pointCloud = file;
+		else
+			recording = file;
+	}
 
 	public static void main(String[] args) {
-		new Viewer().run();
+		if (args.length > 0)
+			new Viewer(Paths.get(args[0])).run();
+		else
+			new Viewer().run();
 	}
 }